@@ -3,6 +3,8 @@ package com.owl.kafka.proxy.server.biz.bo;
 
 import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.proxy.server.biz.pull.PullResponse;
+import io.netty.util.Timeout;
 
 import java.util.Objects;
 
@@ -19,6 +21,22 @@ public class PullRequest {
 
     private long timeoutMs;
 
+    private volatile Timeout timeout;
+
+    /**
+     * fetch limits, the request waits until min bytes are gathered or its timeout is over.
+     */
+    private int minBytes = 1;
+
+    private long maxBytes = Long.MAX_VALUE;
+
+    private int maxRecords = Integer.MAX_VALUE;
+
+    /**
+     * the records gathered so far by a request still waiting for min bytes.
+     */
+    private volatile PullResponse response;
+
     public PullRequest(Connection connection, Packet packet, long timeoutMs){
         this.connection = connection;
         this.packet = packet;
@@ -59,16 +77,57 @@ public class PullRequest {
         this.timeoutMs = timeoutMs;
     }
 
+    public Timeout getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    public void setMinBytes(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    public PullResponse getResponse() {
+        return response;
+    }
+
+    public void setResponse(PullResponse response) {
+        this.response = response;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         PullRequest that = (PullRequest) o;
-        return Objects.equals(connection.getId().asLongText(), that.connection.getId().asLongText());
+        return packet.getOpaque() == that.packet.getOpaque()
+                && Objects.equals(connection.getId().asLongText(), that.connection.getId().asLongText());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(connection.getId().asLongText());
+        return Objects.hash(connection.getId().asLongText(), packet.getOpaque());
     }
 }
@@ -5,6 +5,9 @@ import com.owl.kafka.client.proxy.ConfigLoader;
 import com.owl.kafka.client.util.Constants;
 import com.owl.kafka.client.util.Preconditions;
 import com.owl.kafka.client.util.StringUtils;
+import com.owl.kafka.proxy.server.biz.file.FlushPolicy;
+import com.owl.kafka.proxy.server.biz.queue.WaitStrategy;
+import com.owl.kafka.proxy.server.biz.service.LoadBalancePolicy;
 
 /**
  * @Author: Tboy
@@ -19,6 +22,8 @@ public class ServerConfigs extends ConfigLoader {
 
     static final String SERVER_QUEUE_SIZE = "server.queue.size";
 
+    static final String SERVER_QUEUE_WAIT_STRATEGY = "server.queue.wait.strategy";
+
     static final String SERVER_TOPIC = "server.topic";
 
     static final String SERVER_GROUP_ID = "server.group.id";
@@ -37,12 +42,70 @@ public class ServerConfigs extends ConfigLoader {
 
     static final String SERVER_PUSH_FLOW_CONTROL_MESSAGE_SIZE = "server.push.flow.control.message.size";
 
+    static final String SERVER_PUSH_WINDOW_SIZE = "server.push.window.size";
+
+    static final String SERVER_PUSH_LOAD_BALANCE = "server.push.load.balance";
+
+    static final String SERVER_PUSH_WORKER_THREADS = "server.push.worker.threads";
+
+    static final String SERVER_PUSH_BATCH_RECORDS = "server.push.batch.records";
+
+    static final String SERVER_PUSH_BATCH_BYTES = "server.push.batch.bytes";
+
+    static final String SERVER_PUSH_BATCH_LINGER_MS = "server.push.batch.linger.ms";
+
     static final String SERVER_PULL_MESSAGE_COUNT = "server.pull.message.count";
 
     static final String SERVER_PULL_MESSAGE_SIZE = "server.pull.message.size";
 
+    static final String SERVER_PULL_SUSPEND_TIMEOUT_MS = "server.pull.suspend.timeout.ms";
+
+    static final String SERVER_PULL_SUSPEND_MAX_TIMEOUT_MS = "server.pull.suspend.max.timeout.ms";
+
+    static final String SERVER_PULL_SUSPEND_TICK_MS = "server.pull.suspend.tick.ms";
+
+    static final String SERVER_PULL_PIPELINE_DEPTH = "server.pull.pipeline.depth";
+
+    static final String SERVER_PULL_MAX_MESSAGE_COUNT = "server.pull.max.message.count";
+
+    static final String SERVER_PULL_MAX_MESSAGE_SIZE = "server.pull.max.message.size";
+
     static final String SERVER_REPOST_COUNT = "server.repost.count";
 
+    static final String SERVER_STORE_PATH = "server.store.path";
+
+    static final String SERVER_STORE_FLUSH_POLICY = "server.store.flush.policy";
+
+    static final String SERVER_STORE_FLUSH_INTERVAL_MS = "server.store.flush.interval.ms";
+
+    static final String SERVER_STORE_FLUSH_PAGES = "server.store.flush.pages";
+
+    static final String SERVER_STORE_RETENTION_HOURS = "server.store.retention.hours";
+
+    static final String SERVER_STORE_RETENTION_BYTES = "server.store.retention.bytes";
+
+    static final String SERVER_STORE_TRANSIENT_POOL_ENABLE = "server.store.transient.pool.enable";
+
+    static final String SERVER_STORE_TRANSIENT_POOL_SIZE = "server.store.transient.pool.size";
+
+    static final String SERVER_STORE_COMMIT_INTERVAL_MS = "server.store.commit.interval.ms";
+
+    static final String SERVER_STORE_COMMIT_PAGES = "server.store.commit.pages";
+
+    static final String SERVER_STORE_COMPRESS_ENABLE = "server.store.compress.enable";
+
+    static final String SERVER_STORE_COMPRESS_BLOCK_SIZE = "server.store.compress.block.size";
+
+    static final String SERVER_PULL_STORE_ENABLE = "server.pull.store.enable";
+
+    static final String SERVER_PULL_SPILL_ENABLE = "server.pull.spill.enable";
+
+    static final String SERVER_PUSH_JOURNAL_ENABLE = "server.push.journal.enable";
+
+    static final String SERVER_PULL_QUEUE_STRIPES = "server.pull.queue.stripes";
+
+    static final String SERVER_PULL_QUEUE_STRIPE_SIZE = "server.pull.queue.stripe.size";
+
     static final  String SERVER_CONFIG_FILE = "proxy_server.properties";
 
     public static ServerConfigs I = new ServerConfigs(SERVER_CONFIG_FILE);
@@ -81,6 +144,10 @@ public class ServerConfigs extends ConfigLoader {
         return getInt(SERVER_QUEUE_SIZE, 100);
     }
 
+    public WaitStrategy getServerQueueWaitStrategy(){
+        return WaitStrategy.of(get(SERVER_QUEUE_WAIT_STRATEGY));
+    }
+
     public String getServerKafkaServerList() {
         return get(SERVER_KAFKA_SERVER_LIST);
     }
@@ -109,6 +176,33 @@ public class ServerConfigs extends ConfigLoader {
         return getInt(SERVER_PUSH_FLOW_CONTROL_MESSAGE_SIZE, 64);
     }
 
+    public int getServerPushWindowSize() {
+        return getInt(SERVER_PUSH_WINDOW_SIZE, 1000);
+    }
+
+    /**
+     * round_robin, least_outstanding, power_of_two_choices or ewma, see {@link LoadBalancePolicy}
+     */
+    public LoadBalancePolicy getServerPushLoadBalance(){
+        return LoadBalancePolicy.of(get(SERVER_PUSH_LOAD_BALANCE));
+    }
+
+    public int getServerPushWorkerThreads() {
+        return Math.max(1, getInt(SERVER_PUSH_WORKER_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getServerPushBatchRecords() {
+        return Math.max(1, getInt(SERVER_PUSH_BATCH_RECORDS, 64));
+    }
+
+    public long getServerPushBatchBytes() {
+        return getLong(SERVER_PUSH_BATCH_BYTES, 64 * 1024);
+    }
+
+    public long getServerPushBatchLingerMs() {
+        return getLong(SERVER_PUSH_BATCH_LINGER_MS, 1);
+    }
+
     public int getServerPullMessageCount(){
         return getInt(SERVER_PULL_MESSAGE_COUNT, 10);
     }
@@ -117,7 +211,103 @@ public class ServerConfigs extends ConfigLoader {
         return getLong(SERVER_PULL_MESSAGE_SIZE, 1024 * 1024 * 8);
     }
 
+    public int getServerPullQueueStripes(){
+        return getInt(SERVER_PULL_QUEUE_STRIPES, 8);
+    }
+
+    public int getServerPullQueueStripeSize(){
+        return getInt(SERVER_PULL_QUEUE_STRIPE_SIZE, getServerQueueSize());
+    }
+
+    public long getServerPullSuspendTimeoutMs(){
+        return getLong(SERVER_PULL_SUSPEND_TIMEOUT_MS, 15 * 1000);
+    }
+
+    public long getServerPullSuspendMaxTimeoutMs(){
+        return getLong(SERVER_PULL_SUSPEND_MAX_TIMEOUT_MS, 60 * 1000);
+    }
+
+    public long getServerPullSuspendTickMs(){
+        return getLong(SERVER_PULL_SUSPEND_TICK_MS, 5);
+    }
+
+    public int getServerPullPipelineDepth(){
+        return Math.max(1, getInt(SERVER_PULL_PIPELINE_DEPTH, 16));
+    }
+
+    public int getServerPullMaxMessageCount(){
+        return getInt(SERVER_PULL_MAX_MESSAGE_COUNT, 1000);
+    }
+
+    public long getServerPullMaxMessageSize(){
+        return getLong(SERVER_PULL_MAX_MESSAGE_SIZE, 1024 * 1024 * 64);
+    }
+
     public int getServerRepostCount(){
         return getInt(SERVER_REPOST_COUNT, 5);
     }
+
+    public String getServerStorePath(){
+        String storePath = get(SERVER_STORE_PATH);
+        return StringUtils.isBlank(storePath) ? System.getProperty("user.home") + "/kafka-proxy-server/store" : storePath;
+    }
+
+    /**
+     * sync, interval or pages, see {@link FlushPolicy}
+     */
+    public FlushPolicy getServerStoreFlushPolicy(){
+        return FlushPolicy.of(get(SERVER_STORE_FLUSH_POLICY));
+    }
+
+    public long getServerStoreFlushIntervalMs(){
+        return getLong(SERVER_STORE_FLUSH_INTERVAL_MS, 500);
+    }
+
+    public int getServerStoreFlushPages(){
+        return getInt(SERVER_STORE_FLUSH_PAGES, 16);
+    }
+
+    public int getServerStoreRetentionHours(){
+        return getInt(SERVER_STORE_RETENTION_HOURS, 72);
+    }
+
+    public long getServerStoreRetentionBytes(){
+        return getLong(SERVER_STORE_RETENTION_BYTES, 0);
+    }
+
+    public boolean isServerStoreTransientPoolEnable(){
+        return Boolean.parseBoolean(get(SERVER_STORE_TRANSIENT_POOL_ENABLE));
+    }
+
+    public int getServerStoreTransientPoolSize(){
+        return getInt(SERVER_STORE_TRANSIENT_POOL_SIZE, 5);
+    }
+
+    public long getServerStoreCommitIntervalMs(){
+        return getLong(SERVER_STORE_COMMIT_INTERVAL_MS, 200);
+    }
+
+    public int getServerStoreCommitPages(){
+        return getInt(SERVER_STORE_COMMIT_PAGES, 4);
+    }
+
+    public boolean isServerStoreCompressEnable(){
+        return Boolean.parseBoolean(get(SERVER_STORE_COMPRESS_ENABLE));
+    }
+
+    public int getServerStoreCompressBlockSize(){
+        return getInt(SERVER_STORE_COMPRESS_BLOCK_SIZE, 64 * 1024);
+    }
+
+    public boolean isServerPullStoreEnable(){
+        return Boolean.parseBoolean(get(SERVER_PULL_STORE_ENABLE));
+    }
+
+    public boolean isServerPullSpillEnable(){
+        return Boolean.parseBoolean(get(SERVER_PULL_SPILL_ENABLE));
+    }
+
+    public boolean isServerPushJournalEnable(){
+        return Boolean.parseBoolean(get(SERVER_PUSH_JOURNAL_ENABLE));
+    }
 }
@@ -0,0 +1,149 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates, maps and pre-touches the next segment in the background, so rolling to it on the write path is a map lookup.
+ * @Author: Tboy
+ */
+public class AllocateMappedFileService implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocateMappedFileService.class);
+
+    private static final long WAIT_TIMEOUT_MS = 5 * 1000;
+
+    private final ConcurrentHashMap<String, AllocateRequest> requestTable = new ConcurrentHashMap<>();
+
+    private final LinkedBlockingQueue<AllocateRequest> requestQueue = new LinkedBlockingQueue<>();
+
+    private final AtomicBoolean start = new AtomicBoolean(false);
+
+    private final Thread worker;
+
+    public AllocateMappedFileService(){
+        this.worker = new Thread(this, "allocate-mapped-file-thread");
+        this.worker.setDaemon(true);
+    }
+
+    public void start(){
+        if(this.start.compareAndSet(false, true)){
+            this.worker.start();
+        }
+    }
+
+    /**
+     * take the file preallocated for fileName, creating it now if it is not there yet, and ask for nextFileName to be
+     * prepared in the background.
+     */
+    public MappedFile getNextMappedFile(String fileName, String nextFileName, long fileSize) throws IOException {
+        putRequest(fileName, fileSize);
+        putRequest(nextFileName, fileSize);
+        AllocateRequest request = requestTable.get(fileName);
+        try {
+            if(request != null && request.await(WAIT_TIMEOUT_MS) && request.getMappedFile() != null){
+                requestTable.remove(fileName);
+                return request.getMappedFile();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.warn("preallocate " + fileName + " timeout, create it directly");
+        requestTable.remove(fileName);
+        return new MappedFile(fileName, fileSize);
+    }
+
+    private void putRequest(String fileName, long fileSize){
+        AllocateRequest request = new AllocateRequest(fileName, fileSize);
+        if(requestTable.putIfAbsent(fileName, request) == null){
+            requestQueue.offer(request);
+        }
+    }
+
+    @Override
+    public void run() {
+        while(this.start.get()){
+            AllocateRequest request = null;
+            try {
+                request = requestQueue.take();
+                if(requestTable.get(request.getFileName()) != request){
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                MappedFile mappedFile = new MappedFile(request.getFileName(), request.getFileSize());
+                mappedFile.warm();
+                if(requestTable.get(request.getFileName()) != request){
+                    //the writer gave up waiting and created it itself
+                    mappedFile.close();
+                    continue;
+                }
+                request.setMappedFile(mappedFile);
+                LOGGER.info("preallocate " + request.getFileName() + " cost " + (System.currentTimeMillis() - now) + " ms");
+            } catch (InterruptedException ex){
+                //Ignore
+            } catch (Throwable ex){
+                LOGGER.error("preallocate mapped file error", ex);
+                if(request != null){
+                    requestTable.remove(request.getFileName());
+                }
+            } finally {
+                if(request != null){
+                    request.countDown();
+                }
+            }
+        }
+    }
+
+    public void close(){
+        if(this.start.compareAndSet(true, false)){
+            this.worker.interrupt();
+        }
+    }
+
+    static class AllocateRequest {
+
+        private final String fileName;
+
+        private final long fileSize;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile MappedFile mappedFile;
+
+        AllocateRequest(String fileName, long fileSize){
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public MappedFile getMappedFile() {
+            return mappedFile;
+        }
+
+        public void setMappedFile(MappedFile mappedFile) {
+            this.mappedFile = mappedFile;
+        }
+
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public void countDown(){
+            latch.countDown();
+        }
+    }
+}
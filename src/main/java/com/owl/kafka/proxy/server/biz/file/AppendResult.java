@@ -0,0 +1,71 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+/**
+ * @Author: Tboy
+ */
+public class AppendResult {
+
+    private final Status status;
+
+    private final long fileFromOffset;
+
+    private final long position;
+
+    private final int size;
+
+    public AppendResult(Status status){
+        this(status, -1, -1, 0);
+    }
+
+    public AppendResult(Status status, long fileFromOffset, long position, int size){
+        this.status = status;
+        this.fileFromOffset = fileFromOffset;
+        this.position = position;
+        this.size = size;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOk(){
+        return status == Status.PUT_OK;
+    }
+
+    /**
+     * the segment the record lives in, which is also its file name.
+     */
+    public long getFileFromOffset() {
+        return fileFromOffset;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getWroteOffset(){
+        return fileFromOffset + position;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "AppendResult{" +
+                "status=" + status +
+                ", fileFromOffset=" + fileFromOffset +
+                ", position=" + position +
+                ", size=" + size +
+                '}';
+    }
+
+    public enum Status {
+        PUT_OK,
+        FLUSH_DISK_TIMEOUT,
+        MESSAGE_ILLEGAL,
+        CREATE_MAPPED_FILE_FAILED,
+        UNKNOWN_ERROR;
+    }
+}
@@ -0,0 +1,88 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Flushes in the background, writers never wait. With {@code flushPages > 0} a flush happens once that many pages are
+ * dirty, and at the latest every {@code intervalMs}; otherwise it simply happens every {@code intervalMs}.
+ * @Author: Tboy
+ */
+public class AsyncFlushService implements FlushService, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncFlushService.class);
+
+    private static final int PAGE_SIZE = 4 * 1024;
+
+    private static final long CHECK_INTERVAL_MS = 10;
+
+    private final MappedFileManager mappedFileManager;
+
+    private final long intervalMs;
+
+    private final int flushPages;
+
+    private final Thread worker;
+
+    private final AtomicBoolean start = new AtomicBoolean(false);
+
+    private long lastFlushTimestamp = System.currentTimeMillis();
+
+    public AsyncFlushService(MappedFileManager mappedFileManager, long intervalMs, int flushPages){
+        this.mappedFileManager = mappedFileManager;
+        this.intervalMs = intervalMs;
+        this.flushPages = flushPages;
+        this.worker = new Thread(this, "async-flush-thread");
+        this.worker.setDaemon(true);
+    }
+
+    @Override
+    public void start(){
+        if(this.start.compareAndSet(false, true)){
+            this.worker.start();
+        }
+    }
+
+    @Override
+    public boolean onAppend(AppendResult result) {
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while(this.start.get()){
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushPages > 0 ? Math.min(CHECK_INTERVAL_MS, intervalMs) : intervalMs);
+                long now = System.currentTimeMillis();
+                long dirty = mappedFileManager.getWriteOffset() - mappedFileManager.getFlushedOffset();
+                if(dirty <= 0){
+                    continue;
+                }
+                if(flushPages <= 0 || dirty >= (long)flushPages * PAGE_SIZE || now - lastFlushTimestamp >= intervalMs){
+                    mappedFileManager.flush();
+                    lastFlushTimestamp = now;
+                }
+            } catch (InterruptedException ex){
+                //Ignore
+            } catch (Throwable ex){
+                LOGGER.error("async flush error", ex);
+            }
+        }
+        mappedFileManager.flush();
+    }
+
+    @Override
+    public void close(){
+        if(this.start.compareAndSet(true, false)){
+            this.worker.interrupt();
+            try {
+                this.worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                //Ignore
+            }
+        }
+    }
+}
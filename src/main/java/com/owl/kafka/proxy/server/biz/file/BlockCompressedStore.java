@@ -0,0 +1,455 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.client.util.NamedThreadFactory;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Record store that batches packet frames into blocks and deflates each block into one commit-log record :
+ * opaque = logical offset of the first frame, body = raw length(4) + deflated frames.
+ * Records are addressed by their logical offset in the uncompressed stream, a block index maps it to the block, so a
+ * select only inflates that block. The block being filled stays in memory and is readable until it is written, either
+ * once full or after the linger. A block is sealed under the lock and deflated and written after it, so appends and
+ * reads of the new block do not wait for the disk, sealed blocks stay readable from memory until they are indexed.
+ * @Author: Tboy
+ */
+public class BlockCompressedStore implements RecordStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockCompressedStore.class);
+
+    private static final long FLUSH_TIMEOUT_MS = 5 * 1000;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>(){
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>(){
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * last block inflated by the thread, pulls read the blocks in order so most selects hit it.
+     */
+    private final ThreadLocal<InflatedBlock> inflatedBlock = new ThreadLocal<InflatedBlock>(){
+        @Override
+        protected InflatedBlock initialValue() {
+            return new InflatedBlock();
+        }
+    };
+
+    private final MappedFileManager blocks;
+
+    private final int blockSize;
+
+    private final long lingerMs;
+
+    private final ConcurrentSkipListMap<Long, AppendResult> blockIndex = new ConcurrentSkipListMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * held while sealed blocks are written, so they reach the commit log in the order they were sealed.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * signaled each time a block is written, the sync writes wait on it for the block holding their record.
+     */
+    private final Condition blockWritten = writeLock.newCondition();
+
+    /**
+     * blocks swapped out of pending but not in the block index yet, by start offset.
+     */
+    private final ConcurrentSkipListMap<Long, ByteBuffer> sealed = new ConcurrentSkipListMap<>();
+
+    private ByteBuffer pending;
+
+    private byte[] compressed;
+
+    private volatile long pendingStart;
+
+    private volatile long writeOffset;
+
+    /**
+     * end of the last block written to the commit log, guarded by the write lock.
+     */
+    private long writtenOffset;
+
+    private volatile long pendingTimestamp;
+
+    private final ScheduledExecutorService lingerScheduler;
+
+    public BlockCompressedStore(MappedFileManager blocks, int blockSize, long lingerMs){
+        this.blocks = blocks;
+        this.blockSize = blockSize;
+        this.lingerMs = lingerMs;
+        this.pending = ByteBuffer.allocate(blockSize);
+        this.compressed = new byte[blockSize];
+        this.lingerScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("compress-linger-scheduler"));
+    }
+
+    @Override
+    public void start() {
+        this.blocks.start();
+        this.blocks.forEach((location, packet) -> {
+            long start = packet.getLong(2);
+            blockIndex.put(start, location);
+            writeOffset = start + packet.getInt(MappedFileManager.PACKET_HEAD_SIZE);
+        });
+        this.pendingStart = this.writeOffset;
+        this.writtenOffset = this.writeOffset;
+        this.lingerScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lock.lock();
+                    try {
+                        if(pending.position() > 0 && System.currentTimeMillis() - pendingTimestamp >= lingerMs){
+                            seal();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    writeSealed();
+                } catch (Throwable ex){
+                    LOGGER.error("write compressed block error", ex);
+                }
+            }
+        }, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void enableReclaim(long retentionMs, long retentionBytes) {
+        this.blocks.enableReclaim(retentionMs, retentionBytes);
+    }
+
+    @Override
+    public AppendResult append(Packet packet) {
+        ByteBuffer body = packet.getBody().duplicate();
+        int length = MappedFileManager.PACKET_HEAD_SIZE + body.remaining();
+        if(length > blockSize){
+            LOGGER.warn("message size {} exceeds the block size {}", length, blockSize);
+            return new AppendResult(AppendResult.Status.MESSAGE_ILLEGAL);
+        }
+        AppendResult result;
+        boolean full = false;
+        lock.lock();
+        try {
+            if(pending.remaining() < length){
+                full = seal();
+            }
+            if(pending.position() == 0){
+                pendingTimestamp = System.currentTimeMillis();
+            }
+            long offset = writeOffset;
+            pending.put(packet.getVersion());
+            pending.put(packet.getCmd());
+            pending.putLong(packet.getOpaque());
+            pending.putInt(body.remaining());
+            pending.put(body);
+            writeOffset = offset + length;
+            result = new AppendResult(AppendResult.Status.PUT_OK, 0, offset, length);
+        } finally {
+            lock.unlock();
+        }
+        if(full){
+            writeSealed();
+        }
+        return result;
+    }
+
+    /**
+     * with the sync policy this waits until the block holding the record is written, once full or after the linger, so
+     * the records of a block share one deflate and one force.
+     */
+    @Override
+    public AppendResult write(Packet packet) {
+        AppendResult result = append(packet);
+        if(!result.isOk() || blocks.getFlushPolicy() != FlushPolicy.SYNC){
+            return result;
+        }
+        long end = result.getWroteOffset() + result.getSize();
+        long nanos = TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        writeLock.lock();
+        try {
+            while(writtenOffset < end){
+                if(nanos <= 0){
+                    LOGGER.warn("flush timeout, wrote offset : {}, size : {}", result.getWroteOffset(), result.getSize());
+                    return new AppendResult(AppendResult.Status.FLUSH_DISK_TIMEOUT, result.getFileFromOffset(), result.getPosition(), result.getSize());
+                }
+                nanos = blockWritten.awaitNanos(nanos);
+            }
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            return new AppendResult(AppendResult.Status.FLUSH_DISK_TIMEOUT, result.getFileFromOffset(), result.getPosition(), result.getSize());
+        } finally {
+            writeLock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * seal the pending block and write every sealed block.
+     */
+    private void flush(){
+        lock.lock();
+        try {
+            seal();
+        } finally {
+            lock.unlock();
+        }
+        writeSealed();
+    }
+
+    /**
+     * swap the pending frames out as a sealed block, called with the lock held.
+     * @return true if a block was sealed
+     */
+    private boolean seal(){
+        if(pending.position() == 0){
+            return false;
+        }
+        pending.flip();
+        sealed.put(pendingStart, pending);
+        pending = ByteBuffer.allocate(blockSize);
+        pendingStart = writeOffset;
+        return true;
+    }
+
+    /**
+     * write the sealed blocks oldest first, a block leaves the sealed ones only once it is indexed. A caller returns
+     * once every block sealed before the call is written, by itself or by the thread it waited for.
+     */
+    private void writeSealed(){
+        writeLock.lock();
+        try {
+            Map.Entry<Long, ByteBuffer> entry;
+            while((entry = sealed.firstEntry()) != null){
+                writeBlock(entry.getKey(), entry.getValue());
+                sealed.remove(entry.getKey());
+                writtenOffset = entry.getKey() + entry.getValue().limit();
+                blockWritten.signalAll();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * deflate the frames and append them as one block, called with the write lock held.
+     */
+    private void writeBlock(long start, ByteBuffer frames){
+        int rawLength = frames.limit();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(frames.array(), 0, rawLength);
+        deflater.finish();
+        int size = 0;
+        while(!deflater.finished()){
+            if(size == compressed.length){
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        ByteBuffer body = ByteBuffer.allocate(4 + size);
+        body.putInt(rawLength);
+        body.put(compressed, 0, size);
+        body.flip();
+        Packet block = new Packet();
+        block.setOpaque(start);
+        block.setBody(body);
+        AppendResult result = blocks.write(block);
+        if(result.isOk() || result.getStatus() == AppendResult.Status.FLUSH_DISK_TIMEOUT){
+            blockIndex.put(start, result);
+        } else{
+            LOGGER.error("write compressed block at {} fail, {} bytes of records are lost, result : {}", new Object[]{start, rawLength, result});
+        }
+    }
+
+    @Override
+    public Object selectBody(AppendResult result) {
+        byte[] body = select(result.getWroteOffset(), result.getSize());
+        return body == null ? null : Unpooled.wrappedBuffer(body);
+    }
+
+    /**
+     * blocks are indexed by their logical offset only, a frame can not be found by its msgId.
+     */
+    @Override
+    public ByteBuffer selectByMsgId(long msgId) {
+        return null;
+    }
+
+    /**
+     * copy of the body of the frame at the logical offset.
+     */
+    private byte[] select(long offset, int size){
+        int headSize = MappedFileManager.PACKET_HEAD_SIZE;
+        if(offset >= pendingStart){
+            lock.lock();
+            try {
+                if(offset >= pendingStart){
+                    int from = (int)(offset - pendingStart);
+                    return Arrays.copyOfRange(pending.array(), from + headSize, from + size);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        Map.Entry<Long, ByteBuffer> frames = sealed.floorEntry(offset);
+        if(frames != null && offset < frames.getKey() + frames.getValue().limit()){
+            int from = (int)(offset - frames.getKey());
+            return Arrays.copyOfRange(frames.getValue().array(), from + headSize, from + size);
+        }
+        Map.Entry<Long, AppendResult> entry = blockIndex.floorEntry(offset);
+        if(entry == null){
+            return null;
+        }
+        InflatedBlock inflated = inflatedBlock.get();
+        if(inflated.start != entry.getKey() || inflated.length < 0){
+            if(!inflate(entry.getKey(), entry.getValue(), inflated)){
+                return null;
+            }
+        }
+        int from = (int)(offset - inflated.start);
+        if(from + size > inflated.length){
+            return null;
+        }
+        return Arrays.copyOfRange(inflated.data, from + headSize, from + size);
+    }
+
+    private boolean inflate(long start, AppendResult location, InflatedBlock inflated){
+        int headSize = MappedFileManager.RECORD_HEAD_SIZE + MappedFileManager.PACKET_HEAD_SIZE;
+        if(location.getWroteOffset() + location.getSize() > blocks.getCommittedOffset()){
+            //a whole block is a large enough write already
+            blocks.commit(0);
+        }
+        ByteBuffer block = blocks.select(location.getWroteOffset() + headSize, location.getSize() - headSize);
+        if(block == null){
+            return false;
+        }
+        int rawLength = block.getInt();
+        byte[] input = inflated.input(block.remaining());
+        int inputLength = block.remaining();
+        block.get(input, 0, inputLength);
+        byte[] output = inflated.output(rawLength);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, 0, inputLength);
+        try {
+            int length = 0;
+            while(length < rawLength && !inflater.finished()){
+                int n = inflater.inflate(output, length, rawLength - length);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                length += n;
+            }
+            if(length != rawLength){
+                LOGGER.error("corrupt compressed block at {}, inflated {} of {} bytes", new Object[]{start, length, rawLength});
+                inflated.length = -1;
+                return false;
+            }
+        } catch (DataFormatException ex){
+            LOGGER.error("corrupt compressed block at " + start, ex);
+            inflated.length = -1;
+            return false;
+        }
+        inflated.start = start;
+        inflated.length = rawLength;
+        return true;
+    }
+
+    /**
+     * the block holding the offset and the ones after it are kept, earlier blocks can be reclaimed.
+     */
+    @Override
+    public void setAckedOffset(long ackedOffset) {
+        Map.Entry<Long, AppendResult> entry = blockIndex.floorEntry(ackedOffset);
+        if(entry != null){
+            blocks.setAckedOffset(entry.getValue().getWroteOffset());
+        }
+        Map.Entry<Long, AppendResult> first = blockIndex.firstEntry();
+        MappedFile oldest = first == null ? null : blocks.findMappedFile(first.getValue().getWroteOffset());
+        while(first != null && oldest == null){
+            blockIndex.remove(first.getKey());
+            first = blockIndex.firstEntry();
+            oldest = first == null ? null : blocks.findMappedFile(first.getValue().getWroteOffset());
+        }
+    }
+
+    /**
+     * from the block holding the offset on, a pending block is not in a segment yet.
+     */
+    @Override
+    public void setRetainOffset(long retainOffset) {
+        Map.Entry<Long, AppendResult> entry = blockIndex.floorEntry(retainOffset);
+        blocks.setRetainOffset(entry == null ? 0 : entry.getValue().getWroteOffset());
+    }
+
+    @Override
+    public long getWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * the block being filled is readable from memory, so is every appended record.
+     */
+    @Override
+    public long getCommittedOffset() {
+        return writeOffset;
+    }
+
+    @Override
+    public void close() {
+        this.lingerScheduler.shutdown();
+        flush();
+        this.blocks.close();
+    }
+
+    static class InflatedBlock {
+
+        private long start = -1;
+
+        private int length = -1;
+
+        private byte[] data = new byte[0];
+
+        private byte[] input = new byte[0];
+
+        byte[] output(int size){
+            if(data.length < size){
+                data = new byte[size];
+            }
+            return data;
+        }
+
+        byte[] input(int size){
+            if(input.length < size){
+                input = new byte[size];
+            }
+            return input;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes what was appended to the transient write buffers to the file channel. A commit waits for at least
+ * commitPages dirty pages so the channel sees large writes, unless nothing was committed for thoroughIntervalMs.
+ * @Author: Tboy
+ */
+public class CommitMappedFileService implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitMappedFileService.class);
+
+    private final MappedFileManager mappedFileManager;
+
+    private final long intervalMs;
+
+    private final int commitPages;
+
+    private final long thoroughIntervalMs;
+
+    private final AtomicBoolean start = new AtomicBoolean(false);
+
+    private final Thread worker;
+
+    private long lastThoroughTimestamp = System.currentTimeMillis();
+
+    public CommitMappedFileService(MappedFileManager mappedFileManager, long intervalMs, int commitPages, long thoroughIntervalMs){
+        this.mappedFileManager = mappedFileManager;
+        this.intervalMs = intervalMs;
+        this.commitPages = commitPages;
+        this.thoroughIntervalMs = thoroughIntervalMs;
+        this.worker = new Thread(this, "commit-mapped-file-thread");
+        this.worker.setDaemon(true);
+    }
+
+    public void start(){
+        if(this.start.compareAndSet(false, true)){
+            this.worker.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(this.start.get()){
+            try {
+                int leastPages = this.commitPages;
+                long now = System.currentTimeMillis();
+                if(now - lastThoroughTimestamp >= thoroughIntervalMs){
+                    lastThoroughTimestamp = now;
+                    leastPages = 0;
+                }
+                this.mappedFileManager.commit(leastPages);
+                TimeUnit.MILLISECONDS.sleep(intervalMs);
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable ex){
+                LOGGER.error("commit mapped file error", ex);
+            }
+        }
+    }
+
+    public void close(){
+        if(this.start.compareAndSet(true, false)){
+            this.worker.interrupt();
+            try {
+                this.worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.mappedFileManager.commit(0);
+    }
+}
@@ -0,0 +1,31 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+/**
+ * @Author: Tboy
+ */
+public enum FlushPolicy {
+
+    /**
+     * writers wait for a group flush, for topics that must not lose an acknowledged write.
+     */
+    SYNC,
+
+    /**
+     * flush every N milliseconds.
+     */
+    INTERVAL,
+
+    /**
+     * flush once N pages are dirty.
+     */
+    PAGES;
+
+    public static FlushPolicy of(String policy){
+        for(FlushPolicy flushPolicy : values()){
+            if(flushPolicy.name().equalsIgnoreCase(policy)){
+                return flushPolicy;
+            }
+        }
+        return SYNC;
+    }
+}
@@ -0,0 +1,18 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+/**
+ * Decides when appended records are forced to disk.
+ * @Author: Tboy
+ */
+public interface FlushService {
+
+    void start();
+
+    /**
+     * called after every write, a synchronous policy blocks here until the record is on disk.
+     * @return false if the record could not be flushed in time
+     */
+    boolean onAppend(AppendResult result);
+
+    void close();
+}
@@ -0,0 +1,165 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Batches the flush requests of concurrent writers, so that one force covers every append made since the last one.
+ * @Author: Tboy
+ */
+public class GroupCommitService implements FlushService, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitService.class);
+
+    private final MappedFileManager mappedFileManager;
+
+    private final long flushTimeoutMs;
+
+    private final Thread worker;
+
+    private final AtomicBoolean start = new AtomicBoolean(false);
+
+    private final Object waitPoint = new Object();
+
+    private volatile boolean hasNotified = false;
+
+    private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<>();
+
+    private volatile List<GroupCommitRequest> requestsRead = new ArrayList<>();
+
+    public GroupCommitService(MappedFileManager mappedFileManager, long flushTimeoutMs){
+        this.mappedFileManager = mappedFileManager;
+        this.flushTimeoutMs = flushTimeoutMs;
+        this.worker = new Thread(this, "group-commit-thread");
+        this.worker.setDaemon(true);
+    }
+
+    @Override
+    public void start(){
+        if(this.start.compareAndSet(false, true)){
+            this.worker.start();
+        }
+    }
+
+    @Override
+    public boolean onAppend(AppendResult result) {
+        GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getSize());
+        putRequest(request);
+        return request.waitForFlush(flushTimeoutMs);
+    }
+
+    public void putRequest(final GroupCommitRequest request){
+        synchronized (this) {
+            this.requestsWrite.add(request);
+        }
+        wakeup();
+    }
+
+    private void wakeup(){
+        synchronized (waitPoint){
+            if(!hasNotified){
+                hasNotified = true;
+                waitPoint.notify();
+            }
+        }
+    }
+
+    private void waitForRunning(long interval){
+        synchronized (waitPoint){
+            if(hasNotified){
+                hasNotified = false;
+                swapRequests();
+                return;
+            }
+            try {
+                waitPoint.wait(interval);
+            } catch (InterruptedException e) {
+                //Ignore
+            } finally {
+                hasNotified = false;
+                swapRequests();
+            }
+        }
+    }
+
+    private synchronized void swapRequests(){
+        List<GroupCommitRequest> tmp = this.requestsWrite;
+        this.requestsWrite = this.requestsRead;
+        this.requestsRead = tmp;
+    }
+
+    private void doCommit(){
+        if(!this.requestsRead.isEmpty()){
+            this.mappedFileManager.flush();
+            final long flushedOffset = this.mappedFileManager.getFlushedOffset();
+            for(GroupCommitRequest request : this.requestsRead){
+                request.wakeup(flushedOffset >= request.getNextOffset());
+            }
+            this.requestsRead.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(this.start.get()){
+            try {
+                waitForRunning(10);
+                doCommit();
+            } catch (Throwable ex){
+                LOGGER.error("group commit error", ex);
+            }
+        }
+        //make sure nobody keeps waiting after close
+        swapRequests();
+        doCommit();
+    }
+
+    @Override
+    public void close(){
+        if(this.start.compareAndSet(true, false)){
+            wakeup();
+            try {
+                this.worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                //Ignore
+            }
+        }
+    }
+
+    public static class GroupCommitRequest {
+
+        private final long nextOffset;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile boolean flushOK = false;
+
+        public GroupCommitRequest(long nextOffset){
+            this.nextOffset = nextOffset;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        public void wakeup(boolean flushOK){
+            this.flushOK = flushOK;
+            this.latch.countDown();
+        }
+
+        public boolean waitForFlush(long timeoutMs){
+            try {
+                this.latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return this.flushOK;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse msgId index of one commit-log segment. An entry is written at most once every {@code interval} bytes of the
+ * segment, each entry is msgId(8) + position(4) + size(4), so entries can be binary searched and the record is found by
+ * a short scan from the floor entry.
+ * @Author: Tboy
+ */
+public class IndexFile {
+
+    public static final int INDEX_UNIT_SIZE = 8 + 4 + 4;
+
+    private final MappedFile mappedFile;
+
+    private final int interval;
+
+    private final ByteBuffer entry = ByteBuffer.allocate(INDEX_UNIT_SIZE);
+
+    private volatile long lastIndexedPosition;
+
+    private volatile long lastMsgId;
+
+    /**
+     * false once a msgId came that is not greater than the last one, the entries can not be searched anymore.
+     */
+    private volatile boolean sorted;
+
+    public IndexFile(String fileName, long segmentSize, int interval) throws IOException {
+        this(new MappedFile(fileName, fileSize(segmentSize, interval)), interval);
+    }
+
+    public IndexFile(MappedFile mappedFile, int interval){
+        this.interval = interval;
+        this.mappedFile = mappedFile;
+        reset();
+    }
+
+    public static long fileSize(long segmentSize, int interval){
+        return (segmentSize / interval + 1) * INDEX_UNIT_SIZE;
+    }
+
+    /**
+     * drop every entry, used before the index is rebuilt from its segment.
+     */
+    public void reset(){
+        this.mappedFile.setWritePosition(0);
+        this.mappedFile.setFlushedPosition(0);
+        this.lastIndexedPosition = -interval;
+        this.lastMsgId = Long.MIN_VALUE;
+        this.sorted = true;
+    }
+
+    /**
+     * called under the put lock of the commit log for every record, ids are expected to grow with positions. A record
+     * that breaks the order stops the indexing of the segment, which is then scanned, see {@link #isSorted()}.
+     */
+    public void putIndex(long msgId, long position, int size){
+        if(!sorted){
+            return;
+        }
+        if(msgId <= lastMsgId){
+            this.sorted = false;
+            return;
+        }
+        this.lastMsgId = msgId;
+        if(position - lastIndexedPosition < interval){
+            return;
+        }
+        entry.clear();
+        entry.putLong(msgId);
+        entry.putInt((int)position);
+        entry.putInt(size);
+        entry.flip();
+        if(this.mappedFile.append(entry) >= 0){
+            this.lastIndexedPosition = position;
+        }
+    }
+
+    public boolean isSorted(){
+        return sorted;
+    }
+
+    public int getEntryCount(){
+        return (int)(this.mappedFile.getWritePosition() / INDEX_UNIT_SIZE);
+    }
+
+    public long getMsgId(int index){
+        return this.mappedFile.sliceByteBuffer().getLong(index * INDEX_UNIT_SIZE);
+    }
+
+    public long getPosition(int index){
+        return this.mappedFile.sliceByteBuffer().getInt(index * INDEX_UNIT_SIZE + 8);
+    }
+
+    /**
+     * @return the index of the last entry whose msgId is not greater than msgId, or -1
+     */
+    public int floor(long msgId){
+        ByteBuffer buffer = this.mappedFile.sliceByteBuffer();
+        int low = 0;
+        int high = getEntryCount() - 1;
+        int result = -1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            long midMsgId = buffer.getLong(mid * INDEX_UNIT_SIZE);
+            if(midMsgId <= msgId){
+                result = mid;
+                low = mid + 1;
+            } else{
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    public void flush(){
+        this.mappedFile.flush();
+    }
+
+    public void close(){
+        this.mappedFile.close();
+    }
+}
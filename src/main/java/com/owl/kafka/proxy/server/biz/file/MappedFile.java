@@ -13,6 +13,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -22,6 +23,8 @@ public class MappedFile {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MappedFile.class);
 
+    private static final int PAGE_SIZE = 4 * 1024;
+
     private final String fileName;
 
     private final long fileSize;
@@ -34,13 +37,33 @@ public class MappedFile {
 
     private final AtomicLong writePosition = new AtomicLong(0);
 
+    private final AtomicLong committedPosition = new AtomicLong(0);
+
+    private final AtomicLong flushedPosition = new AtomicLong(0);
+
+    /**
+     * appends go here instead of the file channel while the segment has a buffer from the {@link TransientStorePool}.
+     */
+    private volatile ByteBuffer writeBuffer;
+
+    private TransientStorePool transientStorePool;
+
     private final long fileFromOffset;
 
+    /**
+     * one reference is owned by the file itself, readers that outlive a single call {@link #hold()} one more.
+     */
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private volatile boolean available = true;
+
+    private volatile long shutdownTimestamp;
+
     public MappedFile(final String fileName, final long fileSize) throws IOException {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.file = new File(fileName);
-        this.fileFromOffset = Long.parseLong(fileName);
+        this.fileFromOffset = Long.parseLong(this.file.getName());
         init();
     }
 
@@ -64,24 +87,112 @@ public class MappedFile {
         }
     }
 
-    public boolean append(final byte[] data){
+    /**
+     * write the appends of this fresh segment to a transient buffer, they reach the file on {@link #commit(int)}.
+     */
+    public void setWriteBuffer(ByteBuffer writeBuffer, TransientStorePool transientStorePool){
+        this.writeBuffer = writeBuffer;
+        this.transientStorePool = transientStorePool;
+    }
+
+    /**
+     * append data without forcing it to disk, the caller decides when to {@link #flush()}.
+     * @return the position data was written at, or -1 if there is no room left
+     */
+    public long append(final ByteBuffer data){
         final long currentPos = this.writePosition.get();
-        if(currentPos + data.length <= this.fileSize){
+        final int size = data.remaining();
+        if(currentPos + size <= this.fileSize){
+            ByteBuffer buffer = this.writeBuffer;
+            if(buffer != null){
+                ByteBuffer slice = buffer.duplicate();
+                slice.position((int)currentPos);
+                slice.put(data);
+                this.writePosition.addAndGet(size);
+                return currentPos;
+            }
             try {
                 this.fileChannel.position(currentPos);
-                this.fileChannel.write(ByteBuffer.wrap(data));
-                this.mappedByteBuffer.force();
+                while(data.hasRemaining()){
+                    this.fileChannel.write(data);
+                }
             } catch (Throwable ex){
                 LOGGER.error("Error occurred when append message to mappedFile.", ex);
+                return -1;
+            }
+            this.writePosition.addAndGet(size);
+            return currentPos;
+        }
+        return -1;
+    }
+
+    /**
+     * write the transient buffer to the file channel from the committed position on, in one sequential write.
+     * @param leastPages skip the commit while less than this many pages are pending, 0 to commit whatever there is
+     * @return the committed position
+     */
+    public synchronized long commit(int leastPages){
+        ByteBuffer buffer = this.writeBuffer;
+        if(buffer == null){
+            return getCommittedPosition();
+        }
+        final long committed = this.committedPosition.get();
+        final long write = this.writePosition.get();
+        if(write <= committed || (leastPages > 0 && (write / PAGE_SIZE) - (committed / PAGE_SIZE) < leastPages)){
+            return committed;
+        }
+        try {
+            ByteBuffer pending = buffer.duplicate();
+            pending.position((int)committed);
+            pending.limit((int)write);
+            long position = committed;
+            while(pending.hasRemaining()){
+                position += this.fileChannel.write(pending, position);
             }
-            this.writePosition.addAndGet(data.length);
+            this.committedPosition.set(write);
+        } catch (Throwable ex){
+            LOGGER.error("Error occurred when commit transient buffer to mappedFile.", ex);
+        }
+        return this.committedPosition.get();
+    }
+
+    /**
+     * hand the transient buffer back to the pool once everything in it is committed, the segment reads and writes
+     * the file channel from then on.
+     */
+    public synchronized boolean releaseWriteBuffer(){
+        ByteBuffer buffer = this.writeBuffer;
+        if(buffer == null){
             return true;
         }
-        return false;
+        if(this.committedPosition.get() < this.writePosition.get()){
+            return false;
+        }
+        this.writeBuffer = null;
+        this.transientStorePool.returnBuffer(buffer);
+        return true;
+    }
+
+    /**
+     * force everything committed so far, one force covers all appends since the last flush.
+     * @return the flushed position
+     */
+    public long flush(){
+        final long value = getCommittedPosition();
+        if(this.flushedPosition.get() < value){
+            try {
+                this.fileChannel.force(false);
+            } catch (Throwable ex){
+                LOGGER.error("Error occurred when force data to disk.", ex);
+                return this.flushedPosition.get();
+            }
+            this.flushedPosition.set(value);
+        }
+        return value;
     }
 
     public ByteBuffer select(int pos, int size){
-        if(pos + size <= this.writePosition.get()){
+        if(pos + size <= getCommittedPosition()){
             ByteBuffer positionBuffer = this.mappedByteBuffer.slice();
             positionBuffer.position(pos);
             ByteBuffer sizeBuffer = positionBuffer.slice();
@@ -91,7 +202,70 @@ public class MappedFile {
         return null;
     }
 
+    /**
+     * touch every page of the mapping, so the first writes to a fresh segment do not page fault.
+     */
+    public void warm(){
+        ByteBuffer buffer = this.mappedByteBuffer.slice();
+        for(int i = 0; i < this.fileSize; i += PAGE_SIZE){
+            buffer.put(i, (byte)0);
+        }
+    }
+
+    public ByteBuffer sliceByteBuffer(){
+        return this.mappedByteBuffer.slice();
+    }
+
+    public void force(){
+        this.mappedByteBuffer.force();
+    }
+
+    public boolean hold(){
+        if(this.available){
+            if(this.refCount.getAndIncrement() > 0){
+                return true;
+            }
+            this.refCount.getAndDecrement();
+        }
+        return false;
+    }
+
+    public void release(){
+        this.refCount.decrementAndGet();
+    }
+
+    /**
+     * stop handing out references, the file is destroyed once the outstanding ones are released.
+     */
+    public void shutdown(){
+        if(this.available){
+            this.available = false;
+            this.shutdownTimestamp = System.currentTimeMillis();
+            release();
+        }
+    }
+
+    /**
+     * unmap and delete the file if nobody holds it anymore, or if it was shut down longer than intervalForcibly ago.
+     * @return true if the file is gone
+     */
+    public boolean destroy(long intervalForcibly){
+        if(this.refCount.get() > 0 && System.currentTimeMillis() - this.shutdownTimestamp < intervalForcibly){
+            return false;
+        }
+        close();
+        boolean result = this.file.delete();
+        LOGGER.info("delete " + this.fileName + (result ? " OK" : " Failed"));
+        return result;
+    }
+
+    public long getLastModifiedTimestamp(){
+        return this.file.lastModified();
+    }
+
     public void close(){
+        commit(0);
+        releaseWriteBuffer();
         try {
             clean(this.mappedByteBuffer);
             this.fileChannel.close();
@@ -102,6 +276,45 @@ public class MappedFile {
 
     public void setWritePosition(long position) {
         writePosition.set(position);
+        committedPosition.set(position);
+    }
+
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * the position up to which data is in the file and visible to readers.
+     */
+    public long getCommittedPosition() {
+        return writeBuffer == null ? writePosition.get() : committedPosition.get();
+    }
+
+    public void setFlushedPosition(long position) {
+        flushedPosition.set(position);
+    }
+
+    /**
+     * the position up to which data is forced to disk.
+     */
+    public long getFlushedPosition() {
+        return flushedPosition.get();
+    }
+
+    public long getFileFromOffset() {
+        return fileFromOffset;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public FileChannel getFileChannel() {
+        return fileChannel;
     }
 
     private static void mkDirs(final String dirName) {
@@ -1,41 +1,169 @@
 package com.owl.kafka.proxy.server.biz.file;
 
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.client.util.Constants;
+import com.owl.kafka.client.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
 
 /**
  * @Author: Tboy
  */
-public class MappedFileManager {
+public class MappedFileManager implements RecordStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MappedFileManager.class);
 
+    /**
+     * every record is framed as : totalSize(4) + crc(4) + version(1) + cmd(1) + opaque(8) + bodyLength(4) + body
+     */
+    public static final int RECORD_HEAD_SIZE = 4 + 4;
+
+    public static final int PACKET_HEAD_SIZE = 1 + 1 + 8 + 4;
+
     private final long mapedFileSize = 100 * 1024 * 1024; //100M
 
     private final int maxMsgSize = 8 * 1024 * 1024; //8M
 
+    private final long flushTimeoutMs = 5 * 1000;
+
+    private final int indexInterval = 4 * 1024; //4K
+
     private final String storePath;
 
-    private final List<MappedFile> mappedFiles = new ArrayList<>();
+    private final List<MappedFile> mappedFiles = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentHashMap<Long, IndexFile> indexFiles = new ConcurrentHashMap<>();
 
     private final ByteBuffer store;
 
-    private final ByteBuffer idStore;
+    private final ReentrantLock putLock = new ReentrantLock();
+
+    private final FlushService flushService;
+
+    private final AllocateMappedFileService allocateMappedFileService = new AllocateMappedFileService();
+
+    private ReclaimService reclaimService;
+
+    private boolean indexEnabled;
+
+    private final FlushPolicy flushPolicy;
+
+    private TransientStorePool transientStorePool;
+
+    private CommitMappedFileService commitService;
+
+    private volatile long committedOffset = 0;
+
+    private volatile long ackedOffset = 0;
+
+    private volatile long retainOffset = Long.MAX_VALUE;
+
+    private volatile long flushedOffset = 0;
 
     public MappedFileManager(String storePath){
+        this(storePath, FlushPolicy.SYNC, 0, 0);
+    }
+
+    public MappedFileManager(String storePath, FlushPolicy flushPolicy, long flushIntervalMs, int flushPages){
         this.storePath = storePath;
         this.store = ByteBuffer.allocate(maxMsgSize);
-        this.idStore = ByteBuffer.allocate(8 + 8);
+        this.flushPolicy = flushPolicy;
+        switch (flushPolicy){
+            case INTERVAL:
+                this.flushService = new AsyncFlushService(this, flushIntervalMs, 0);
+                break;
+            case PAGES:
+                this.flushService = new AsyncFlushService(this, flushIntervalMs, flushPages);
+                break;
+            default:
+                this.flushService = new GroupCommitService(this, flushTimeoutMs);
+        }
+    }
+
+    @Override
+    public void start(){
+        load();
+        recovery();
+        this.committedOffset = getWriteOffset();
+        if(this.commitService != null){
+            this.transientStorePool.init();
+            this.commitService.start();
+        }
+        this.flushService.start();
+        this.allocateMappedFileService.start();
+        if(this.reclaimService != null){
+            this.reclaimService.start();
+        }
+    }
+
+    /**
+     * reclaim old segments in the background, must be called before {@link #start()}.
+     * @param retentionMs segments not written for this long are deleted, 0 for no limit
+     * @param retentionBytes the oldest segments are deleted while the store is larger than this, 0 for no limit
+     */
+    @Override
+    public void enableReclaim(long retentionMs, long retentionBytes){
+        this.reclaimService = new ReclaimService(this, retentionMs, retentionBytes);
+    }
+
+    /**
+     * keep a sparse index of the record opaques next to every segment, for {@link #selectByMsgId(long)}. Must be called
+     * before {@link #start()}, only worth it when the opaques grow with the records, like the msgIds of staged records.
+     */
+    public void enableIndex(){
+        this.indexEnabled = true;
+    }
+
+    /**
+     * append to pooled direct buffers and commit them to the segments in the background, must be called before
+     * {@link #start()}. Records are readable once committed, see {@link #getCommittedOffset()}.
+     * Not available with the sync flush policy, which has to wait for every record to be on disk anyway.
+     * @param poolSize number of segment sized direct buffers
+     * @param commitIntervalMs how often the commit thread looks for pending data
+     * @param commitPages least pages of pending data for a commit, everything is committed at least once a second
+     */
+    public void enableTransientStorePool(int poolSize, long commitIntervalMs, int commitPages){
+        if(this.flushPolicy == FlushPolicy.SYNC){
+            LOGGER.warn("transient store pool is ignored with the sync flush policy");
+            return;
+        }
+        this.transientStorePool = new TransientStorePool(poolSize, (int) mapedFileSize);
+        this.commitService = new CommitMappedFileService(this, commitIntervalMs, commitPages, 1000);
+    }
+
+    @Override
+    public void close(){
+        if(this.reclaimService != null){
+            this.reclaimService.close();
+        }
+        if(this.commitService != null){
+            this.commitService.close();
+        }
+        this.allocateMappedFileService.close();
+        this.flushService.close();
+        flush();
+        for(MappedFile mappedFile : mappedFiles){
+            mappedFile.close();
+        }
+        for(IndexFile indexFile : indexFiles.values()){
+            indexFile.flush();
+            indexFile.close();
+        }
     }
 
     public void load(){
@@ -44,13 +172,21 @@ public class MappedFileManager {
         if (files != null) {
             Arrays.sort(files);
             for (File file : files) {
+                if (file.isDirectory()) {
+                    continue;
+                }
                 if (file.length() != this.mapedFileSize) {
                     LOGGER.warn(file + " length not matched message store config value, ignore it");
                     continue;
                 }
                 try {
                     MappedFile mappedFile = new MappedFile(file.getPath(), mapedFileSize);
+                    //the real positions are found by recovery
                     mappedFile.setWritePosition(this.mapedFileSize);
+                    mappedFile.setFlushedPosition(this.mapedFileSize);
+                    if(this.indexEnabled){
+                        this.indexFiles.put(mappedFile.getFileFromOffset(), createIndexFile(mappedFile.getFileFromOffset()));
+                    }
                     this.mappedFiles.add(mappedFile);
                     LOGGER.info("load " + file.getPath() + " OK");
                 } catch (IOException e) {
@@ -58,83 +194,485 @@ public class MappedFileManager {
                 }
             }
         }
+        dropPreallocated();
     }
 
+    /**
+     * the allocate service maps the next segment ahead of time, a trailing segment whose first record is empty never
+     * took a write. It is deleted so recovery truncates the real tail and appends go on right after it.
+     */
+    private void dropPreallocated(){
+        MappedFile last;
+        while((last = getLastMappedFile()) != null && last.sliceByteBuffer().getInt(0) == 0){
+            this.mappedFiles.remove(last);
+            IndexFile indexFile = this.indexFiles.remove(last.getFileFromOffset());
+            last.shutdown();
+            last.destroy(0);
+            if(indexFile != null){
+                indexFile.getMappedFile().shutdown();
+                indexFile.getMappedFile().destroy(0);
+            }
+        }
+    }
+
+    /**
+     * scan every segment in parallel for the last record with a valid length and crc. Whatever follows it in the
+     * tail segment is a torn write and gets zeroed, so new appends start right after the last valid record.
+     * The msgId index of each segment, if enabled, is rebuilt by the same pass.
+     */
     private void recovery(){
         if(!mappedFiles.isEmpty()){
+            int threads = Math.max(1, Math.min(Constants.CPU_SIZE, mappedFiles.size()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("mapped-file-recovery"));
+            try {
+                List<Future<Long>> futures = new ArrayList<>(mappedFiles.size());
+                for(final MappedFile mappedFile : mappedFiles){
+                    futures.add(executor.submit(() -> scan(mappedFile)));
+                }
+                for(int i = 0; i < mappedFiles.size(); i++){
+                    MappedFile mappedFile = mappedFiles.get(i);
+                    long validPosition = futures.get(i).get();
+                    boolean isLast = i == mappedFiles.size() - 1;
+                    if(isLast){
+                        truncate(mappedFile, validPosition);
+                    } else if(validPosition < mappedFile.getFileSize()){
+                        LOGGER.info("recover " + mappedFile.getFileName() + " end at position " + validPosition);
+                    }
+                    mappedFile.setWritePosition(validPosition);
+                    mappedFile.setFlushedPosition(validPosition);
+                }
+            } catch (Exception ex){
+                throw new IllegalStateException("recovery mapped files error", ex);
+            } finally {
+                executor.shutdown();
+            }
+        }
+        MappedFile last = getLastMappedFile();
+        if(last != null){
+            this.flushedOffset = last.getFileFromOffset() + last.getWritePosition();
+        }
+    }
 
+    /**
+     * @return the position right after the last valid record of the segment
+     */
+    private long scan(MappedFile mappedFile){
+        IndexFile indexFile = indexFiles.get(mappedFile.getFileFromOffset());
+        if(indexFile != null){
+            indexFile.reset();
+        }
+        ByteBuffer buffer = mappedFile.sliceByteBuffer();
+        CRC32 crc32 = new CRC32();
+        int position = 0;
+        while(position + RECORD_HEAD_SIZE <= buffer.limit()){
+            int totalSize = buffer.getInt(position);
+            if(totalSize < RECORD_HEAD_SIZE + PACKET_HEAD_SIZE || position + totalSize > buffer.limit()){
+                break;
+            }
+            int crc = buffer.getInt(position + 4);
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(position + RECORD_HEAD_SIZE);
+            payload.limit(position + totalSize);
+            crc32.reset();
+            crc32.update(payload);
+            if((int)crc32.getValue() != crc){
+                LOGGER.warn(mappedFile.getFileName() + " crc check fail at position " + position);
+                break;
+            }
+            if(indexFile != null){
+                indexFile.putIndex(opaque(buffer, position), position, totalSize);
+            }
+            position += totalSize;
+        }
+        if(indexFile != null){
+            indexFile.flush();
         }
+        return position;
     }
 
-    public static String createMessageId(final ByteBuffer input, final ByteBuffer addr, final long offset) {
-        input.flip();
-        input.limit(8 + 8);
+    private void truncate(MappedFile mappedFile, long validPosition){
+        if(validPosition < mappedFile.getFileSize()){
+            ByteBuffer buffer = mappedFile.sliceByteBuffer();
+            byte[] zero = new byte[4096];
+            buffer.position((int)validPosition);
+            while(buffer.hasRemaining()){
+                buffer.put(zero, 0, Math.min(zero.length, buffer.remaining()));
+            }
+            mappedFile.force();
+            LOGGER.info("truncate " + mappedFile.getFileName() + " from position " + validPosition);
+        }
+    }
 
-        input.put(addr);
-        input.putLong(offset);
+    private IndexFile createIndexFile(long fileFromOffset) throws IOException {
+        return new IndexFile(indexFileName(fileFromOffset), mapedFileSize, indexInterval);
+    }
 
-        return bytes2string(input.array());
+    private String segmentFileName(long fileFromOffset){
+        return this.storePath + File.separator + String.format("%020d", fileFromOffset);
     }
 
-    public static String bytes2string(byte[] src) {
-        StringBuilder sb = new StringBuilder();
-        if (src == null || src.length <= 0) {
-            return null;
+    private String indexFileName(long fileFromOffset){
+        return this.storePath + File.separator + "index" + File.separator + String.format("%020d", fileFromOffset);
+    }
+
+    /**
+     * append the packet to the commit log and hand it to the flush service, with the sync policy this returns once the
+     * record is on disk and concurrent writers share a single force.
+     * With the index enabled the record is indexed by the packet opaque, see {@link #selectByMsgId(long)}.
+     */
+    @Override
+    public AppendResult write(Packet packet){
+        AppendResult result = append(packet);
+        if(!result.isOk()){
+            return result;
         }
-        for (int i = 0; i < src.length; i++) {
-            int v = src[i] & 0xFF;
-            String hv = Integer.toHexString(v);
-            if (hv.length() < 2) {
-                sb.append(0);
+        if(!awaitFlush(result)){
+            LOGGER.warn("flush timeout, wrote offset : {}, size : {}", result.getWroteOffset(), result.getSize());
+            return new AppendResult(AppendResult.Status.FLUSH_DISK_TIMEOUT, result.getFileFromOffset(), result.getPosition(), result.getSize());
+        }
+        return result;
+    }
+
+    /**
+     * hand an appended record to the flush service, so a writer appending a batch waits once for its last record.
+     * @return false if the record could not be flushed in time
+     */
+    public boolean awaitFlush(AppendResult result){
+        return flushService.onAppend(result);
+    }
+
+    /**
+     * append the packet to the commit log without waiting for it to be flushed.
+     */
+    @Override
+    public AppendResult append(Packet packet){
+        int length = calculate(packet);
+        if(length > maxMsgSize){
+            LOGGER.warn("message size {} exceeds the max message size {}", length, maxMsgSize);
+            return new AppendResult(AppendResult.Status.MESSAGE_ILLEGAL);
+        }
+        AppendResult result;
+        putLock.lock();
+        try {
+            MappedFile mappedFile = getLastMappedFile(length);
+            if(mappedFile == null){
+                return new AppendResult(AppendResult.Status.CREATE_MAPPED_FILE_FAILED);
+            }
+            reset(store, length);
+            store.putInt(length);
+            store.putInt(0);
+            store.put(packet.getVersion());
+            store.put(packet.getCmd());
+            store.putLong(packet.getOpaque());
+            ByteBuffer body = packet.getBody().duplicate();
+            store.putInt(body.remaining());
+            store.put(body);
+            store.putInt(4, crc(store.array(), RECORD_HEAD_SIZE, length - RECORD_HEAD_SIZE));
+            store.flip();
+            long position = mappedFile.append(store);
+            if(position < 0){
+                return new AppendResult(AppendResult.Status.UNKNOWN_ERROR);
             }
-            sb.append(hv.toUpperCase());
+            IndexFile indexFile = indexFiles.get(mappedFile.getFileFromOffset());
+            if(indexFile != null){
+                indexFile.putIndex(packet.getOpaque(), position, length);
+            }
+            result = new AppendResult(AppendResult.Status.PUT_OK, mappedFile.getFileFromOffset(), position, length);
+        } finally {
+            putLock.unlock();
         }
-        return sb.toString();
+        return result;
     }
 
-    public static byte[] string2bytes(String hexString) {
-        if (hexString == null || hexString.equals("")) {
+    public ByteBuffer select(long offset, int size){
+        MappedFile mappedFile = findMappedFile(offset);
+        if(mappedFile != null){
+            return mappedFile.select((int)(offset - mappedFile.getFileFromOffset()), size);
+        }
+        return null;
+    }
+
+    @Override
+    public Object selectBody(AppendResult result){
+        return selectBodyRegion(result);
+    }
+
+    /**
+     * the body of an appended packet as a region that can be written to a socket with sendfile.
+     */
+    public SegmentFileRegion selectBodyRegion(AppendResult result){
+        MappedFile mappedFile = findMappedFile(result.getWroteOffset());
+        if(mappedFile == null || !mappedFile.hold()){
             return null;
         }
-        hexString = hexString.toUpperCase();
-        int length = hexString.length() / 2;
-        char[] hexChars = hexString.toCharArray();
-        byte[] d = new byte[length];
-        for (int i = 0; i < length; i++) {
-            int pos = i * 2;
-            d[i] = (byte) (charToByte(hexChars[pos]) << 4 | charToByte(hexChars[pos + 1]));
+        int headSize = RECORD_HEAD_SIZE + PACKET_HEAD_SIZE;
+        return new SegmentFileRegion(mappedFile, result.getPosition() + headSize, result.getSize() - headSize);
+    }
+
+    /**
+     * find a record by msgId (the opaque it was written with) : pick the segment, binary search its sparse index,
+     * then scan at most one index interval of records. A segment whose ids broke the order is scanned whole.
+     * @return a copy of the packet part of the record, or null if not found or the index is not enabled
+     */
+    @Override
+    public ByteBuffer selectByMsgId(long msgId){
+        for(int i = mappedFiles.size() - 1; i >= 0; i--){
+            MappedFile mappedFile = mappedFiles.get(i);
+            IndexFile indexFile = indexFiles.get(mappedFile.getFileFromOffset());
+            if(indexFile == null || indexFile.getEntryCount() == 0 || !mappedFile.hold()){
+                continue;
+            }
+            try {
+                long position = 0;
+                long end = mappedFile.getCommittedPosition();
+                if(indexFile.isSorted()){
+                    if(msgId < indexFile.getMsgId(0)){
+                        continue;
+                    }
+                    int floor = indexFile.floor(msgId);
+                    position = indexFile.getPosition(floor);
+                    if(floor + 1 < indexFile.getEntryCount()){
+                        end = indexFile.getPosition(floor + 1);
+                    }
+                }
+                ByteBuffer buffer = mappedFile.sliceByteBuffer();
+                while(position + RECORD_HEAD_SIZE <= end){
+                    int totalSize = buffer.getInt((int)position);
+                    if(totalSize <= 0){
+                        break;
+                    }
+                    if(opaque(buffer, position) == msgId){
+                        ByteBuffer record = buffer.duplicate();
+                        record.position((int)position + RECORD_HEAD_SIZE);
+                        record.limit((int)position + totalSize);
+                        ByteBuffer copy = ByteBuffer.allocate(record.remaining());
+                        copy.put(record);
+                        copy.flip();
+                        return copy;
+                    }
+                    position += totalSize;
+                }
+            } finally {
+                mappedFile.release();
+            }
         }
-        return d;
+        return null;
     }
 
-    private static byte charToByte(char c) {
-        return (byte) "0123456789ABCDEF".indexOf(c);
+    /**
+     * walk every record from the oldest segment on, the handler gets the location and the packet part of each record.
+     */
+    public void forEach(BiConsumer<AppendResult, ByteBuffer> handler){
+        for(MappedFile mappedFile : mappedFiles){
+            ByteBuffer buffer = mappedFile.sliceByteBuffer();
+            long end = mappedFile.getCommittedPosition();
+            int position = 0;
+            while(position + RECORD_HEAD_SIZE <= end){
+                int totalSize = buffer.getInt(position);
+                if(totalSize <= 0){
+                    break;
+                }
+                ByteBuffer packet = buffer.duplicate();
+                packet.position(position + RECORD_HEAD_SIZE);
+                packet.limit(position + totalSize);
+                handler.accept(new AppendResult(AppendResult.Status.PUT_OK, mappedFile.getFileFromOffset(), position, totalSize), packet.slice());
+                position += totalSize;
+            }
+        }
     }
 
-    public void write(long fileFromOffset, ByteBuffer byteBuffer, Packet packet, SocketAddress socketAddress){
-        long wroteOffset = fileFromOffset + byteBuffer.position();
-        String messageId = createMessageId(idStore, host(socketAddress), wroteOffset);
-        int length = calculate(packet);
-        reset(store, length);
-        store.put(packet.getVersion());
-        store.put(packet.getCmd());
-        store.putLong(packet.getOpaque());
-        store.putInt(packet.getBody().remaining());
-        store.put(packet.getBody());
+    private static long opaque(ByteBuffer buffer, long position){
+        return buffer.getLong((int)position + RECORD_HEAD_SIZE + 1 + 1);
+    }
 
+    /**
+     * force every segment between the flushed offset and the write offset.
+     */
+    public void flush(){
+        MappedFile mappedFile;
+        while((mappedFile = findMappedFile(this.flushedOffset)) != null || skipReclaimed()){
+            if(mappedFile == null){
+                continue;
+            }
+            long flushedPosition = mappedFile.flush();
+            long offset = mappedFile.getFileFromOffset() + flushedPosition;
+            if(mappedFile != getLastMappedFile() && flushedPosition >= mappedFile.getWritePosition()){
+                //a rolled segment never takes more data
+                offset = mappedFile.getFileFromOffset() + mappedFile.getFileSize();
+            }
+            if(offset <= this.flushedOffset){
+                break;
+            }
+            this.flushedOffset = offset;
+        }
     }
 
-    public static ByteBuffer host(SocketAddress socketAddress) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(8);
-        InetSocketAddress inetSocketAddress = (InetSocketAddress) socketAddress;
-        byteBuffer.put(inetSocketAddress.getAddress().getAddress());
-        byteBuffer.putInt(inetSocketAddress.getPort());
-        byteBuffer.flip();
-        return byteBuffer;
+    /**
+     * the flushed offset may point into a segment that was already reclaimed, move it to the first segment left.
+     */
+    private boolean skipReclaimed(){
+        if(mappedFiles.isEmpty()){
+            return false;
+        }
+        long first = mappedFiles.get(0).getFileFromOffset();
+        if(first > this.flushedOffset){
+            this.flushedOffset = first;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * remove a segment and its index from the store, readers that already hold it keep it until released.
+     */
+    void removeMappedFile(MappedFile mappedFile){
+        this.mappedFiles.remove(mappedFile);
+        IndexFile indexFile = this.indexFiles.remove(mappedFile.getFileFromOffset());
+        mappedFile.shutdown();
+        if(indexFile != null){
+            indexFile.getMappedFile().shutdown();
+        }
+    }
+
+    IndexFile getIndexFile(long fileFromOffset){
+        return this.indexFiles.get(fileFromOffset);
+    }
+
+    public List<MappedFile> getMappedFiles(){
+        return new ArrayList<>(this.mappedFiles);
+    }
+
+    /**
+     * every record before this offset is acknowledged, segments that end before it can be reclaimed.
+     */
+    @Override
+    public void setAckedOffset(long ackedOffset) {
+        this.ackedOffset = ackedOffset;
+    }
+
+    public long getAckedOffset() {
+        return ackedOffset;
+    }
+
+    /**
+     * nothing is retained by default, the retention alone decides.
+     */
+    @Override
+    public void setRetainOffset(long retainOffset) {
+        this.retainOffset = retainOffset;
+    }
+
+    public long getRetainOffset() {
+        return retainOffset;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * write what is pending in the transient buffers to the segments, segments that rolled give their buffer back.
+     */
+    public synchronized void commit(int leastPages){
+        MappedFile last = getLastMappedFile();
+        long offset = -1;
+        for(MappedFile mappedFile : mappedFiles){
+            boolean rolled = mappedFile != last;
+            mappedFile.commit(rolled ? 0 : leastPages);
+            if(rolled){
+                mappedFile.releaseWriteBuffer();
+            }
+            if(offset < 0 && mappedFile.getCommittedPosition() < mappedFile.getWritePosition()){
+                offset = mappedFile.getFileFromOffset() + mappedFile.getCommittedPosition();
+            }
+        }
+        //the write offset would take appends made after the last segment was committed
+        if(offset < 0 && last != null){
+            offset = last.getFileFromOffset() + last.getCommittedPosition();
+        }
+        if(offset >= 0){
+            this.committedOffset = offset;
+        }
+    }
+
+    /**
+     * records before this offset are in the segment files and readable.
+     */
+    @Override
+    public long getCommittedOffset(){
+        return this.transientStorePool == null ? getWriteOffset() : this.committedOffset;
+    }
+
+    public long getFlushedOffset() {
+        return flushedOffset;
+    }
+
+    @Override
+    public long getWriteOffset(){
+        MappedFile last = getLastMappedFile();
+        return last == null ? 0 : last.getFileFromOffset() + last.getWritePosition();
+    }
+
+    public MappedFile findMappedFile(long offset){
+        for(MappedFile mappedFile : mappedFiles){
+            if(offset >= mappedFile.getFileFromOffset() && offset < mappedFile.getFileFromOffset() + mappedFile.getFileSize()){
+                return mappedFile;
+            }
+        }
+        return null;
+    }
+
+    public MappedFile getLastMappedFile(){
+        if(mappedFiles.isEmpty()){
+            return null;
+        }
+        return mappedFiles.get(mappedFiles.size() - 1);
+    }
+
+    /**
+     * the last segment if it can still take length bytes, otherwise roll to a new one.
+     */
+    private MappedFile getLastMappedFile(int length){
+        MappedFile last = getLastMappedFile();
+        if(last != null && last.getWritePosition() + length <= last.getFileSize()){
+            return last;
+        }
+        long fileFromOffset = last == null ? 0 : last.getFileFromOffset() + last.getFileSize();
+        String fileName = segmentFileName(fileFromOffset);
+        try {
+            MappedFile mappedFile = allocateMappedFileService.getNextMappedFile(fileName, segmentFileName(fileFromOffset + mapedFileSize), mapedFileSize);
+            if(this.transientStorePool != null){
+                ByteBuffer writeBuffer = this.transientStorePool.borrowBuffer();
+                if(writeBuffer != null){
+                    mappedFile.setWriteBuffer(writeBuffer, this.transientStorePool);
+                }
+            }
+            if(this.indexEnabled){
+                MappedFile indexMappedFile = allocateMappedFileService.getNextMappedFile(indexFileName(fileFromOffset),
+                        indexFileName(fileFromOffset + mapedFileSize), IndexFile.fileSize(mapedFileSize, indexInterval));
+                this.indexFiles.put(fileFromOffset, new IndexFile(indexMappedFile, indexInterval));
+                IndexFile lastIndex = last == null ? null : this.indexFiles.get(last.getFileFromOffset());
+                if(lastIndex != null){
+                    lastIndex.flush();
+                }
+            }
+            this.mappedFiles.add(mappedFile);
+            LOGGER.info("create mapped file " + fileName + " OK");
+            return mappedFile;
+        } catch (IOException e) {
+            LOGGER.error("create mapped file " + fileName + " error", e);
+        }
+        return null;
     }
 
     private int calculate(Packet packet) {
-        return 1 + 1 + 8 + 4 + packet.getBody().remaining();
+        return RECORD_HEAD_SIZE + PACKET_HEAD_SIZE + packet.getBody().remaining();
+    }
+
+    private static int crc(byte[] array, int offset, int length){
+        CRC32 crc32 = new CRC32();
+        crc32.update(array, offset, length);
+        return (int)crc32.getValue();
     }
 
     private void reset(ByteBuffer buffer, int limit){
@@ -0,0 +1,106 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import com.owl.kafka.client.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the oldest segments once they are older than the retention time, the store is larger than the retention
+ * bytes, or every record in them is acknowledged. The segment being written and the ones from the retain offset on are
+ * never reclaimed, and appends never wait for this service.
+ * @Author: Tboy
+ */
+public class ReclaimService implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReclaimService.class);
+
+    private static final long INTERVAL_MS = 10 * 1000;
+
+    private static final long DESTROY_FORCIBLY_MS = 120 * 1000;
+
+    private final MappedFileManager mappedFileManager;
+
+    private final long retentionMs;
+
+    private final long retentionBytes;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * segments removed from the store but possibly still held by readers.
+     */
+    private final List<MappedFile> pendingDestroy = new ArrayList<>();
+
+    public ReclaimService(MappedFileManager mappedFileManager, long retentionMs, long retentionBytes){
+        this.mappedFileManager = mappedFileManager;
+        this.retentionMs = retentionMs;
+        this.retentionBytes = retentionBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("reclaim-scheduler"));
+    }
+
+    public void start(){
+        this.scheduler.scheduleWithFixedDelay(this, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            reclaim();
+            destroy();
+        } catch (Throwable ex){
+            LOGGER.error("reclaim error", ex);
+        }
+    }
+
+    private void reclaim(){
+        List<MappedFile> mappedFiles = mappedFileManager.getMappedFiles();
+        long totalBytes = 0;
+        for(MappedFile mappedFile : mappedFiles){
+            totalBytes += mappedFile.getFileSize();
+        }
+        long now = System.currentTimeMillis();
+        long ackedOffset = mappedFileManager.getAckedOffset();
+        long retainOffset = mappedFileManager.getRetainOffset();
+        for(int i = 0; i < mappedFiles.size() - 1; i++){
+            MappedFile mappedFile = mappedFiles.get(i);
+            long end = mappedFile.getFileFromOffset() + mappedFile.getFileSize();
+            if(end > retainOffset){
+                break;
+            }
+            boolean expired = retentionMs > 0 && now - mappedFile.getLastModifiedTimestamp() > retentionMs;
+            boolean oversize = retentionBytes > 0 && totalBytes > retentionBytes;
+            boolean acked = end <= ackedOffset;
+            if(!expired && !oversize && !acked){
+                break;
+            }
+            IndexFile indexFile = mappedFileManager.getIndexFile(mappedFile.getFileFromOffset());
+            mappedFileManager.removeMappedFile(mappedFile);
+            pendingDestroy.add(mappedFile);
+            if(indexFile != null){
+                pendingDestroy.add(indexFile.getMappedFile());
+            }
+            totalBytes -= mappedFile.getFileSize();
+            LOGGER.info("reclaim " + mappedFile.getFileName() + ", expired : " + expired + ", oversize : " + oversize + ", acked : " + acked);
+        }
+    }
+
+    private void destroy(){
+        Iterator<MappedFile> iterator = pendingDestroy.iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().destroy(DESTROY_FORCIBLY_MS)){
+                iterator.remove();
+            }
+        }
+    }
+
+    public void close(){
+        this.scheduler.shutdown();
+    }
+}
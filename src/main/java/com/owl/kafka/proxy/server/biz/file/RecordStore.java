@@ -0,0 +1,57 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A store the pull records are staged in, either the plain commit log or the block compressed one.
+ * @Author: Tboy
+ */
+public interface RecordStore {
+
+    void start();
+
+    /**
+     * retention of the store, must be called before {@link #start()}.
+     */
+    void enableReclaim(long retentionMs, long retentionBytes);
+
+    AppendResult append(Packet packet);
+
+    /**
+     * append and hand the record to the flush policy, with the sync policy this returns once the record is on disk.
+     */
+    AppendResult write(Packet packet);
+
+    /**
+     * the body of an appended record as something a channel can write as is : a {@link io.netty.channel.FileRegion}
+     * or a {@link io.netty.buffer.ByteBuf}, null if the record is gone.
+     */
+    Object selectBody(AppendResult result);
+
+    /**
+     * the packet part of the record appended with this msgId as opaque, null if it is gone or the store does not
+     * index them.
+     */
+    ByteBuffer selectByMsgId(long msgId);
+
+    /**
+     * records before this offset are delivered, the segments holding only such records can be reclaimed.
+     */
+    void setAckedOffset(long ackedOffset);
+
+    /**
+     * the segments holding records at or after this offset are kept whatever the retention time and bytes say.
+     */
+    void setRetainOffset(long retainOffset);
+
+    long getWriteOffset();
+
+    /**
+     * records that end at or before this offset can be selected.
+     */
+    long getCommittedOffset();
+
+    void close();
+}
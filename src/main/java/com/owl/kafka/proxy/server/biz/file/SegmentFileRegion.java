@@ -0,0 +1,101 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A region of a commit-log segment written to the socket with sendfile. Unlike {@link io.netty.channel.DefaultFileRegion}
+ * the channel belongs to the {@link MappedFile} and stays open when the region is released.
+ * @Author: Tboy
+ */
+public class SegmentFileRegion extends AbstractReferenceCounted implements FileRegion {
+
+    private final MappedFile mappedFile;
+
+    private final FileChannel fileChannel;
+
+    private final long position;
+
+    private final long count;
+
+    private long transferred;
+
+    /**
+     * the mapped file must be held by the caller, the hold is released with the region.
+     */
+    public SegmentFileRegion(MappedFile mappedFile, long position, long count){
+        this.mappedFile = mappedFile;
+        this.fileChannel = mappedFile.getFileChannel();
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    @Deprecated
+    public long transfered() {
+        return transferred;
+    }
+
+    @Override
+    public long transferred() {
+        return transferred;
+    }
+
+    @Override
+    public long count() {
+        return count;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target, long position) throws IOException {
+        long count = this.count - position;
+        if (count < 0 || position < 0) {
+            throw new IllegalArgumentException("position out of range: " + position + " (expected: 0 - " + (this.count - 1) + ')');
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        long written = this.fileChannel.transferTo(this.position + position, count, target);
+        if (written > 0) {
+            transferred += written;
+        }
+        return written;
+    }
+
+    @Override
+    protected void deallocate() {
+        //the channel is owned by the mapped file
+        this.mappedFile.release();
+    }
+
+    @Override
+    public FileRegion retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public FileRegion retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public FileRegion touch() {
+        return this;
+    }
+
+    @Override
+    public FileRegion touch(Object hint) {
+        return this;
+    }
+}
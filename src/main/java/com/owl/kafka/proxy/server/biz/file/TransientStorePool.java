@@ -0,0 +1,55 @@
+package com.owl.kafka.proxy.server.biz.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Pre-allocated direct buffers the size of a segment. Appends to a fresh segment go to one of them at memory speed,
+ * the commit thread writes them to the file channel in large sequential chunks.
+ * @Author: Tboy
+ */
+public class TransientStorePool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransientStorePool.class);
+
+    private final int poolSize;
+
+    private final int fileSize;
+
+    private final ConcurrentLinkedDeque<ByteBuffer> availableBuffers = new ConcurrentLinkedDeque<>();
+
+    public TransientStorePool(int poolSize, int fileSize){
+        this.poolSize = poolSize;
+        this.fileSize = fileSize;
+    }
+
+    public void init(){
+        for(int i = 0; i < poolSize; i++){
+            availableBuffers.offer(ByteBuffer.allocateDirect(fileSize));
+        }
+        LOGGER.info("init transient store pool, {} buffers of {} bytes", poolSize, fileSize);
+    }
+
+    /**
+     * @return a cleared buffer, or null if all of them are in use
+     */
+    public ByteBuffer borrowBuffer(){
+        ByteBuffer buffer = availableBuffers.pollFirst();
+        if(buffer == null){
+            LOGGER.warn("transient store pool is exhausted, the segment is written to the file channel directly");
+        }
+        return buffer;
+    }
+
+    public void returnBuffer(ByteBuffer buffer){
+        buffer.clear();
+        availableBuffers.offerFirst(buffer);
+    }
+
+    public int availableBufferNums(){
+        return availableBuffers.size();
+    }
+}
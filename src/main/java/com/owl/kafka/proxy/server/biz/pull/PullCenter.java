@@ -1,23 +1,34 @@
 package com.owl.kafka.proxy.server.biz.pull;
 
+import com.owl.kafka.client.consumer.Record;
 import com.owl.kafka.client.proxy.service.IdService;
 import com.owl.kafka.client.proxy.service.PullStatus;
-import com.owl.kafka.client.proxy.transport.alloc.ByteBufferPool;
+import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.message.Header;
+import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Command;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
 import com.owl.kafka.client.serializer.SerializerImpl;
 import com.owl.kafka.proxy.server.biz.bo.PullRequest;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import com.owl.kafka.proxy.server.biz.file.AppendResult;
+import com.owl.kafka.proxy.server.biz.file.BlockCompressedStore;
+import com.owl.kafka.proxy.server.biz.file.MappedFileManager;
+import com.owl.kafka.proxy.server.biz.file.RecordStore;
+import com.owl.kafka.proxy.server.biz.queue.WaitStrategy;
 import com.owl.kafka.proxy.server.biz.service.PullRequestHoldService;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.PooledByteBufAllocator;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @Author: Tboy
@@ -28,82 +39,283 @@ public class PullCenter{
 
     public static PullCenter I  = new PullCenter();
 
-    private final int queueSize = ServerConfigs.I.getServerQueueSize();
+    private final WaitStrategy waitStrategy = ServerConfigs.I.getServerQueueWaitStrategy();
 
-    private final ArrayBlockingQueue<Packet> retryQueue = new ArrayBlockingQueue<>(queueSize);
+    /**
+     * records put back after a failed send or a send back, they were all pulled before so the queue is bounded by what
+     * is in flight and putting back never blocks the event loop.
+     */
+    private final ConcurrentLinkedQueue<Packet> retryQueue = new ConcurrentLinkedQueue<>();
 
-    private final ArrayBlockingQueue<ConsumerRecord<byte[], byte[]>> pullQueue = new ArrayBlockingQueue<>(queueSize);
+    private final StripedQueue<ConsumerRecord<byte[], byte[]>> pullQueue = new StripedQueue<>(ServerConfigs.I.getServerPullQueueStripes(),
+            ServerConfigs.I.getServerPullQueueStripeSize(), waitStrategy);
 
-    private final int pullMessageCount = ServerConfigs.I.getServerPullMessageCount();
+    private final PullRequestHoldService pullRequestHoldService = new PullRequestHoldService();
 
-    private final long messageSize = ServerConfigs.I.getServerPullMessageSize();
+    /**
+     * when the store is enabled, records are staged in the commit log and only their locations are queued.
+     * In spill mode only what does not fit in the pull queue is staged.
+     */
+    private final RecordStore store;
 
-    private final PullRequestHoldService pullRequestHoldService = new PullRequestHoldService();
+    private final boolean spill;
+
+    /**
+     * locations of the staged records, the records themselves are in the store so staging never blocks the kafka poll
+     * thread on a full queue.
+     */
+    private final ConcurrentLinkedQueue<AppendResult> stageQueue;
 
-    private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    /**
+     * wrote offsets of staged records not delivered yet, segments before the first one can be reclaimed and the ones
+     * from it on are retained.
+     */
+    private final ConcurrentSkipListSet<Long> undelivered = new ConcurrentSkipListSet<>();
+
+    /**
+     * write offset before the record being staged, staged by the kafka poll thread alone.
+     */
+    private volatile long staging = Long.MAX_VALUE;
+
+    public PullCenter(){
+        this.spill = !ServerConfigs.I.isServerPullStoreEnable() && ServerConfigs.I.isServerPullSpillEnable();
+        if(ServerConfigs.I.isServerPullStoreEnable() || spill){
+            MappedFileManager commitLog = new MappedFileManager(ServerConfigs.I.getServerStorePath(), ServerConfigs.I.getServerStoreFlushPolicy(),
+                    ServerConfigs.I.getServerStoreFlushIntervalMs(), ServerConfigs.I.getServerStoreFlushPages());
+            this.store = ServerConfigs.I.isServerStoreCompressEnable() ? new BlockCompressedStore(commitLog,
+                    ServerConfigs.I.getServerStoreCompressBlockSize(), ServerConfigs.I.getServerStoreFlushIntervalMs()) : commitLog;
+            if(!ServerConfigs.I.isServerStoreCompressEnable()){
+                //staged records take increasing msgIds as opaque, so a client can view one by its id
+                commitLog.enableIndex();
+            }
+            if(ServerConfigs.I.isServerStoreTransientPoolEnable()){
+                commitLog.enableTransientStorePool(ServerConfigs.I.getServerStoreTransientPoolSize(),
+                        ServerConfigs.I.getServerStoreCommitIntervalMs(), ServerConfigs.I.getServerStoreCommitPages());
+            }
+            this.store.enableReclaim(TimeUnit.HOURS.toMillis(ServerConfigs.I.getServerStoreRetentionHours()), ServerConfigs.I.getServerStoreRetentionBytes());
+            this.store.start();
+            //offsets are committed to kafka once clients ack, so records staged before a restart are fetched again
+            release(this.store.getWriteOffset());
+            this.stageQueue = new ConcurrentLinkedQueue<>();
+        } else{
+            this.store = null;
+            this.stageQueue = null;
+        }
+    }
 
+    /**
+     * in spill mode records go to the pull queue while it has room and nothing is spilled, so a burst never blocks
+     * the kafka poll thread and records are still pulled in the order they were fetched.
+     */
     public void putMessage(ConsumerRecord<byte[], byte[]> record) throws InterruptedException{
-        this.pullQueue.put(record);
+        if(store == null){
+            this.pullQueue.put(record.partition(), record);
+        } else if(!spill || !stageQueue.isEmpty() || !this.pullQueue.offer(record.partition(), record)){
+            stage(record);
+        }
+        this.pullRequestHoldService.notifyMessageArriving();
+    }
+
+    /**
+     * records are appended without waiting for a force, an unacked record is fetched from kafka again after a restart
+     * so the store only needs it readable.
+     */
+    private void stage(ConsumerRecord<byte[], byte[]> record) throws InterruptedException{
+        long msgId = IdService.I.getId();
+        Packet packet = new Packet();
+        packet.setCmd(Command.PULL_RESP.getCmd());
+        packet.setOpaque(msgId);
+        //staged records are sent as they are stored, so they keep the json header every client reads
+        packet.setBody(encode(record, msgId, false));
+        this.staging = store.getWriteOffset();
+        AppendResult result = store.append(packet);
+        if(result.isOk()){
+            this.undelivered.add(result.getWroteOffset());
+            this.staging = Long.MAX_VALUE;
+            this.stageQueue.offer(result);
+        } else{
+            this.staging = Long.MAX_VALUE;
+            LOGGER.warn("stage record fail, {}, fall back to memory", result);
+            this.pullQueue.put(record.partition(), record);
+        }
+    }
+
+    public void reputMessage(Packet packet){
+        this.retryQueue.offer(packet);
         this.pullRequestHoldService.notifyMessageArriving();
     }
 
-    public void reputMessage(Packet packet) throws InterruptedException{
-        this.retryQueue.put(packet);
+    /**
+     * put back a response that could not be sent.
+     */
+    public void reputMessage(PullResponse response){
+        for(ByteBuffer record : response.getRecords()){
+            Packet packet = new Packet();
+            packet.setBody(record);
+            this.retryQueue.offer(packet);
+        }
+        for(AppendResult result : response.getStaged()){
+            this.stageQueue.offer(result);
+        }
         this.pullRequestHoldService.notifyMessageArriving();
     }
 
-    public Packet pull(PullRequest request, boolean isSuspend) {
-        long messageCount = pullMessageCount;
-        final Packet result = request.getPacket();
-        result.setCmd(Command.PULL_RESP.getCmd());
-        while(messageCount > 0 && result.getBodyLength() < messageSize * pullMessageCount){
-            messageCount--;
+    /**
+     * fill the response of the request up to its max records and max bytes, the last record may cross max bytes.
+     * @return the response once it holds min bytes or can not grow anymore, null while the request waits for more
+     */
+    public PullResponse pull(PullRequest request) {
+        PullResponse result = request.getResponse();
+        if(result == null){
+            result = new PullResponse(request.getPacket());
+        }
+        while(result.getRecordCount() < request.getMaxRecords() && result.getBodyLength() < request.getMaxBytes()){
             if(!this.poll(result)){
                 break;
             }
         }
-        if(result.isBodyEmtpy() && isSuspend){
-            pullRequestHoldService.suspend(request);
+        if(isReady(request, result)){
+            request.setResponse(null);
+            return result;
         }
-        return result;
+        request.setResponse(result);
+        return null;
     }
 
-    private boolean poll(Packet packet) {
+    /**
+     * answer the request at once when it is ready and no earlier request of its connection is pending, else suspend it.
+     */
+    public void submit(PullRequest request){
+        pullRequestHoldService.submit(request);
+    }
+
+    private boolean isReady(PullRequest request, PullResponse result){
+        return !result.isEmpty() && (result.getBodyLength() >= request.getMinBytes()
+                || result.getRecordCount() >= request.getMaxRecords() || result.getBodyLength() >= request.getMaxBytes());
+    }
+
+    /**
+     * send the response, whatever can not be delivered is put back for the next pull.
+     */
+    public void send(Connection connection, final PullResponse response){
+        response.send(connection, new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(!future.isSuccess()){
+                    reputMessage(response);
+                } else if(!response.getStaged().isEmpty()){
+                    delivered(response.getStaged());
+                }
+            }
+        });
+    }
+
+    /**
+     * the write offset is read before the record being staged and the undelivered ones, so a record appended before it
+     * is always seen by one of them.
+     */
+    private void delivered(List<AppendResult> staged){
+        for(AppendResult result : staged){
+            this.undelivered.remove(result.getWroteOffset());
+        }
+        long writeOffset = this.store.getWriteOffset();
+        long staging = this.staging;
+        Long first = this.undelivered.ceiling(Long.MIN_VALUE);
+        release(Math.min(staging, first == null ? writeOffset : first));
+    }
+
+    private void release(long offset){
+        this.store.setAckedOffset(offset);
+        this.store.setRetainOffset(offset);
+    }
+
+    private boolean poll(PullResponse response) {
         boolean polled = false;
-        Packet one = retryQueue.peek();
+        boolean binary = response.getPacket().getVersion() >= HeaderCodec.BINARY_VERSION;
+        Packet one = retryQueue.poll();
         if(one != null){
-            retryQueue.poll();
-            ByteBuffer buffer = bufferPool.allocate(one.getBody().capacity() + packet.getBody().capacity());
-            buffer.put(packet.getBody());
-            buffer.put(one.getBody());
-            packet.setBody(buffer);
+            response.addRecord(binary ? one.getBody() : HeaderCodec.toJson(one.getBody()));
             polled = true;
         } else{
             ConsumerRecord<byte[], byte[]> record = pullQueue.poll();
-            if(record != null){
-                Header header = new Header(record.topic(), record.partition(), record.offset(),
-                        IdService.I.getId(), PullStatus.FOUND.getStatus());
-                byte[] headerInBytes = SerializerImpl.getFastJsonSerializer().serialize(header);
-                //
-                int capacity = 4 + headerInBytes.length + 4 + record.key().length + 4 + record.value().length;
-                ByteBuffer buffer = bufferPool.allocate(capacity + packet.getBody().capacity());
-
-                buffer.put(packet.getBody());
-                buffer.putInt(headerInBytes.length);
-                buffer.put(headerInBytes);
-                buffer.putInt(record.key().length);
-                buffer.put(record.key());
-                buffer.putInt(record.value().length);
-                buffer.put(record.value());
-                //
-                packet.setBody(buffer);
+            if(record == null && store != null){
+                polled = pollStaged(response);
+            } else if(record != null){
+                response.addRecord(encode(record, IdService.I.getId(), binary));
                 polled = true;
             }
         }
         return polled;
     }
 
+    /**
+     * a staged record is only pulled once the store committed it.
+     */
+    private boolean pollStaged(PullResponse response){
+        AppendResult staged;
+        synchronized (stageQueue){
+            staged = stageQueue.peek();
+            if(staged == null || staged.getWroteOffset() + staged.getSize() > store.getCommittedOffset()){
+                return false;
+            }
+            stageQueue.poll();
+        }
+        if(staged != null){
+            Object region = store.selectBody(staged);
+            if(region != null){
+                response.addRegion(staged, region);
+                return true;
+            }
+            LOGGER.warn("staged record {} not found, it may be reclaimed", staged);
+            this.undelivered.remove(staged.getWroteOffset());
+        }
+        return false;
+    }
+
+    /**
+     * a record staged in the store, found by its msgId.
+     * @return null if the store is not enabled, does not index msgIds or the record is gone
+     */
+    public Record<byte[], byte[]> view(long msgId){
+        if(store == null){
+            return null;
+        }
+        ByteBuffer packet = store.selectByMsgId(msgId);
+        if(packet == null){
+            return null;
+        }
+        packet.position(MappedFileManager.PACKET_HEAD_SIZE);
+        Message message = HeaderCodec.decode(packet.slice());
+        Header header = message.getHeader();
+        return new Record<>(msgId, header.getTopic(), header.getPartition(), header.getOffset(),
+                message.getKey(), message.getValue(), ConsumerRecord.NO_TIMESTAMP);
+    }
+
+    private ByteBuffer encode(ConsumerRecord<byte[], byte[]> record, long msgId, boolean binary){
+        if(binary){
+            return HeaderCodec.encode(record.topic(), record.partition(), record.offset(), msgId,
+                    Header.Sign.PULL.getSign(), PullStatus.FOUND.getStatus(), (byte) 0, record.key(), record.value());
+        }
+        Header header = new Header(record.topic(), record.partition(), record.offset(),
+                msgId, PullStatus.FOUND.getStatus());
+        byte[] headerInBytes = SerializerImpl.getFastJsonSerializer().serialize(header);
+        //
+        int capacity = 4 + headerInBytes.length + 4 + record.key().length + 4 + record.value().length;
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.putInt(headerInBytes.length);
+        buffer.put(headerInBytes);
+        buffer.putInt(record.key().length);
+        buffer.put(record.key());
+        buffer.putInt(record.value().length);
+        buffer.put(record.value());
+        buffer.flip();
+        return buffer;
+    }
+
     public void close(){
         this.pullRequestHoldService.close();
+        if(this.store != null){
+            this.store.close();
+        }
     }
 }
@@ -0,0 +1,132 @@
+package com.owl.kafka.proxy.server.biz.pull;
+
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.client.proxy.transport.exceptions.ChannelInactiveException;
+import com.owl.kafka.client.proxy.transport.protocol.Command;
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.proxy.server.biz.file.AppendResult;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response of a pull request. Records are kept as the parts they come in : buffers encoded in memory, file regions of
+ * the commit log or buffers inflated from a compressed block, and written to the socket after the frame header, so
+ * each record is referenced once and never copied into a response body. Consecutive buffers go out in one gathering
+ * write, file regions with sendfile.
+ * @Author: Tboy
+ */
+public class PullResponse {
+
+    private static final String ENCODER = "encoder";
+
+    private final Packet packet;
+
+    private final List<AppendResult> staged = new ArrayList<>();
+
+    /**
+     * record bodies encoded in memory, to be put back if the response is not sent.
+     */
+    private final List<ByteBuffer> records = new ArrayList<>();
+
+    private final List<Object> parts = new ArrayList<>();
+
+    private long partLength;
+
+    public PullResponse(Packet packet){
+        this.packet = packet;
+        this.packet.setCmd(Command.PULL_RESP.getCmd());
+    }
+
+    public Packet getPacket() {
+        return packet;
+    }
+
+    public void addRecord(ByteBuffer record){
+        this.records.add(record);
+        this.parts.add(Unpooled.wrappedBuffer(record.duplicate()));
+        this.partLength += record.remaining();
+    }
+
+    /**
+     * @param region a {@link FileRegion} or a {@link ByteBuf} holding the body of the staged record
+     */
+    public void addRegion(AppendResult result, Object region){
+        this.staged.add(result);
+        this.parts.add(region);
+        this.partLength += region instanceof FileRegion ? ((FileRegion) region).count() : ((ByteBuf) region).readableBytes();
+    }
+
+    public List<ByteBuffer> getRecords() {
+        return records;
+    }
+
+    public List<AppendResult> getStaged() {
+        return staged;
+    }
+
+    public int getRecordCount(){
+        return parts.size();
+    }
+
+    public long getBodyLength(){
+        return packet.getBodyLength() + partLength;
+    }
+
+    public boolean isEmpty(){
+        return packet.isBodyEmtpy() && parts.isEmpty();
+    }
+
+    /**
+     * the response is always written from an event loop task, even from the event loop itself, so responses go out
+     * in the order they are sent whichever thread sends them.
+     */
+    public void send(final Connection connection, final ChannelFutureListener listener) {
+        final Channel channel = connection.getChannel();
+        final ChannelPromise promise = channel.newPromise();
+        promise.addListener(listener);
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!parts.isEmpty()){
+                    write(channel, promise);
+                    return;
+                }
+                try {
+                    connection.send(packet, listener);
+                } catch (ChannelInactiveException ex) {
+                    promise.setFailure(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * header and parts are written from the encoder's context in one event loop task, so they pass the
+     * encoder untouched and cannot interleave with other packets of the channel.
+     */
+    private void write(Channel channel, ChannelPromise promise){
+        ChannelHandlerContext ctx = channel.pipeline().context(ENCODER);
+        ByteBuf header = Unpooled.buffer(1 + 1 + 8 + 4);
+        header.writeByte(packet.getVersion());
+        header.writeByte(packet.getCmd());
+        header.writeLong(packet.getOpaque());
+        header.writeInt((int)getBodyLength());
+        ctx.write(header);
+        if(!packet.isBodyEmtpy()){
+            ctx.write(Unpooled.wrappedBuffer(packet.getBody().duplicate()));
+        }
+        for(int i = 0; i < parts.size() - 1; i++){
+            ctx.write(parts.get(i));
+        }
+        ctx.writeAndFlush(parts.get(parts.size() - 1), promise);
+    }
+}
@@ -0,0 +1,77 @@
+package com.owl.kafka.proxy.server.biz.pull;
+
+import com.owl.kafka.proxy.server.biz.queue.RingBuffer;
+import com.owl.kafka.proxy.server.biz.queue.WaitStrategy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue split into stripes by a key, the partition for records. A key always maps to the same stripe so its
+ * order is kept, producers of different stripes do not share a lock, and {@link #poll()} takes from the stripes in
+ * turn so a hot partition cannot starve the others.
+ * @Author: Tboy
+ */
+public class StripedQueue<E> {
+
+    private final RingBuffer<E>[] stripes;
+
+    private final int mask;
+
+    private final AtomicInteger cursor = new AtomicInteger(0);
+
+    /**
+     * @param stripes rounded up to a power of two
+     * @param capacity of each stripe, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public StripedQueue(int stripes, int capacity, WaitStrategy waitStrategy){
+        int size = 1;
+        while(size < stripes){
+            size <<= 1;
+        }
+        this.stripes = new RingBuffer[size];
+        for(int i = 0; i < size; i++){
+            this.stripes[i] = new RingBuffer<>(capacity, waitStrategy);
+        }
+        this.mask = size - 1;
+    }
+
+    public void put(int key, E e) throws InterruptedException{
+        stripes[key & mask].put(e);
+    }
+
+    public boolean offer(int key, E e){
+        return stripes[key & mask].offer(e);
+    }
+
+    /**
+     * the head of the next non empty stripe after the one polled last.
+     */
+    public E poll(){
+        int start = cursor.getAndIncrement();
+        for(int i = 0; i < stripes.length; i++){
+            E e = stripes[(start + i) & mask].poll();
+            if(e != null){
+                return e;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty(){
+        for(RingBuffer<E> stripe : stripes){
+            if(!stripe.isEmpty()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size(){
+        int size = 0;
+        for(RingBuffer<E> stripe : stripes){
+            size += stripe.size();
+        }
+        return size;
+    }
+}
@@ -1,116 +1,236 @@
 package com.owl.kafka.proxy.server.biz.push;
 
-import com.owl.kafka.client.proxy.service.DefaultRetryPolicy;
 import com.owl.kafka.client.proxy.service.IdService;
 import com.owl.kafka.client.proxy.service.LoadBalance;
-import com.owl.kafka.client.proxy.service.RetryPolicy;
 import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.exceptions.ChannelInactiveException;
 import com.owl.kafka.client.proxy.transport.message.Header;
 import com.owl.kafka.client.proxy.transport.protocol.Command;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.serializer.SerializerImpl;
-import com.owl.kafka.proxy.server.biz.bo.ControlResult;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import com.owl.kafka.proxy.server.biz.file.AppendResult;
+import com.owl.kafka.proxy.server.biz.queue.RingBuffer;
+import com.owl.kafka.proxy.server.biz.registry.ClientRegistry;
+import com.owl.kafka.proxy.server.biz.queue.WaitStrategy;
 import com.owl.kafka.proxy.server.biz.service.*;
+import com.owl.kafka.proxy.server.transport.codec.BatchCodec;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Records are pushed by N workers, each taking the records of its own partitions. Each worker owns the connections
+ * whose id hashes to it and only pushes to those, a packet none of them can take is handed back through the retry
+ * queue to the other workers. The writes of a drained batch are handed to each channel's event loop in a single
+ * task. Clients reading batched frames get them packed, see {@link BatchCodec}.
  * @Author: Tboy
  */
-public class PushCenter implements Runnable{
+public class PushCenter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PushCenter.class);
 
+    private static final int BATCH_SIZE = 64;
+
+    private static final long AWAIT_MS = 50;
+
     private final int queueSize = ServerConfigs.I.getServerQueueSize();
 
-    private final LoadBalance<Connection> loadBalance = new RoundRobinLoadBalance();
+    private final LoadBalancePolicy loadBalancePolicy = ServerConfigs.I.getServerPushLoadBalance();
+
+    /**
+     * for the repushes, the workers have their own.
+     */
+    private final LoadBalance<Connection> loadBalance = loadBalancePolicy.create();
+
+    private final PushWindows windows = PushWindows.I;
 
-    private final RetryPolicy retryPolicy = new DefaultRetryPolicy();
+    private final int batchRecords = ServerConfigs.I.getServerPushBatchRecords();
 
-    private final ArrayBlockingQueue<Packet> retryQueue = new ArrayBlockingQueue<>(queueSize);
+    private final long batchBytes = ServerConfigs.I.getServerPushBatchBytes();
 
-    private final ArrayBlockingQueue<ConsumerRecord<byte[], byte[]>> pushQueue = new ArrayBlockingQueue<>(queueSize);
+    private final long lingerNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfigs.I.getServerPushBatchLingerMs());
+
+    private final WaitStrategy waitStrategy = ServerConfigs.I.getServerQueueWaitStrategy();
+
+    private final RingBuffer<Packet> retryQueue = new RingBuffer<>(queueSize, waitStrategy);
 
     private final RepushPolicy repushPolicy = new DefaultFixedTimeRepushPolicy(this);
 
-    private final FlowController flowController = new DefaultFlowController();
+    private final FlowController flowController = MessageHolder.FLOW_CONTROLLER;
 
     private final AtomicBoolean start = new AtomicBoolean(false);
 
-    private final Thread worker;
+    private final PushWorker[] workers;
+
+    private final PushJournal journal;
+
+    private Map<TopicPartition, Long> recoveredOffsets = Collections.emptyMap();
 
     public PushCenter(){
-        this.worker = new Thread(this,"push-worker");
-        this.worker.setDaemon(true);
+        this.workers = new PushWorker[ServerConfigs.I.getServerPushWorkerThreads()];
+        for(int i = 0; i < workers.length; i++){
+            this.workers[i] = new PushWorker(i);
+        }
+        this.journal = ServerConfigs.I.isServerPushJournalEnable() ? new PushJournal() : null;
     }
 
     public void start(){
         this.start.compareAndSet(false, true);
-        this.worker.start();
+        if(this.journal != null){
+            this.recoveredOffsets = this.journal.start();
+            InstanceHolder.I.setPushJournal(this.journal);
+        }
+        for(PushWorker worker : workers){
+            worker.thread.start();
+        }
         this.repushPolicy.start();
     }
 
+    /**
+     * a partition is always taken by the same worker, so its records are journaled in offset order.
+     */
     public void putMessage(ConsumerRecord<byte[], byte[]> record) throws InterruptedException{
-        this.pushQueue.put(record);
+        this.workers[(record.partition() & Integer.MAX_VALUE) % workers.length].queue.put(record);
     }
 
-    public void push(Packet packet) throws InterruptedException, ChannelInactiveException {
+    /**
+     * a message not held yet takes its credit first, so the push worker parks here while too many messages wait for
+     * their ack. Repushed messages hold theirs already.
+     */
+    public void push(final Packet packet) throws InterruptedException, ChannelInactiveException {
+        push(packet, (PushWorker) null);
+    }
+
+    /**
+     * @return false if the worker has no connection to push the packet to, it then still owns the packet
+     */
+    private boolean push(final Packet packet, PushWorker worker) throws InterruptedException, ChannelInactiveException {
         checkState();
-        this.push(packet, new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                if(future.isSuccess()){
-                    MessageHolder.fastPut(packet);
-                } else {
-                    retryQueue.put(packet);
+        final long size = MessageHolder.sizeOf(packet);
+        final long msgId = HeaderCodec.decodeMsgId(packet.getBody());
+        final boolean admitted = !MessageHolder.contains(msgId);
+        //the writes a worker holds took their credits already, they must go out before it waits for acks
+        if(admitted && !flowController.tryAcquire(size)){
+            if(worker != null){
+                worker.flush();
+            }
+            flowController.acquire(size);
+        }
+        boolean pushed = false;
+        try {
+            pushed = this.push(packet, msgId, worker, new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if(future.isSuccess()){
+                        if(!MessageHolder.fastPut(packet) && admitted){
+                            flowController.release(size);
+                        }
+                    } else {
+                        windows.release(msgId);
+                        if(admitted){
+                            flowController.release(size);
+                        }
+                        retryQueue.put(packet);
+                    }
+                }
+            });
+            return pushed;
+        } finally {
+            if(!pushed){
+                windows.release(msgId);
+                if(admitted){
+                    flowController.release(size);
                 }
             }
-        });
+        }
     }
 
-    //TODO flow control and loadbalance can be optimized by using wait, notify
-    private void push(Packet packet, final ChannelFutureListener listener) throws InterruptedException, ChannelInactiveException {
-        ControlResult controlResult = flowController.flowControl(packet);
-        while(!controlResult.isAllowed()){
-            controlResult = flowController.flowControl(packet);
+    private boolean push(Packet packet, long msgId, PushWorker worker, final ChannelFutureListener listener) throws InterruptedException, ChannelInactiveException {
+        Connection connection = select(msgId, worker);
+        if(connection == null){
+            return false;
         }
-        retryPolicy.reset();
-        Connection connection = loadBalance.select(InstanceHolder.I.getRegistryCenter().getClientRegistry().getClients());
-        while((connection == null && retryPolicy.allowRetry()) || (!connection.isWritable() && !connection.isActive())){
-            connection = loadBalance.select(InstanceHolder.I.getRegistryCenter().getClientRegistry().getClients());
-        }
-
         //
-        connection.send(packet, listener);
+        if(!HeaderCodec.supportsBinary(connection) && HeaderCodec.isBinary(packet.getBody())){
+            Packet json = new Packet();
+            json.setVersion(packet.getVersion());
+            json.setCmd(packet.getCmd());
+            json.setOpaque(packet.getOpaque());
+            json.setBody(HeaderCodec.toJson(packet.getBody()));
+            packet = json;
+        }
+        if(worker == null){
+            connection.send(packet, listener);
+        } else{
+            worker.write(connection, packet, listener);
+        }
+        return true;
     }
 
-    @Override
-    public void run() {
-        while(this.start.get()){
-            Packet ref = null;
-            try {
-                final Packet packet = take();
-                ref = packet;
-                push(packet);
-            } catch (InterruptedException ex) {
-                LOGGER.error("InterruptedException", ex);
-            } catch (ChannelInactiveException ex){
-                LOGGER.error("ChannelInactiveException", ex);
-                if(ref != null){
-                    putOrPush(ref);
+    /**
+     * pick one of the writable connections with room in their window and take a slot for the message. A worker only
+     * picks among the connections it owns and gets null when none is eligible, the repushes park until one is.
+     */
+    private Connection select(long msgId, PushWorker worker) throws InterruptedException {
+        for(;;){
+            List<Connection> eligible = eligible(worker);
+            Connection connection = (worker == null ? loadBalance : worker.loadBalance).select(eligible);
+            if(connection == null){
+                if(worker != null){
+                    return null;
                 }
+                windows.await(AWAIT_MS);
+            } else if(windows.acquire(connection, msgId)){
+                return connection;
+            }
+        }
+    }
+
+    /**
+     * a worker filters the connections it owns into a list of its own, the repushes any connection.
+     */
+    private List<Connection> eligible(PushWorker worker){
+        List<Connection> clients = worker == null ? clientRegistry().getClients() : worker.owned();
+        List<Connection> eligible;
+        if(worker == null){
+            eligible = new ArrayList<>(clients.size());
+        } else{
+            eligible = worker.eligible;
+            eligible.clear();
+        }
+        for(Connection connection : clients){
+            if(windows.isEligible(connection)){
+                eligible.add(connection);
             }
         }
+        return eligible;
+    }
+
+    private ClientRegistry clientRegistry(){
+        return InstanceHolder.I.getRegistryCenter().getClientRegistry();
+    }
+
+    /**
+     * by the connection id, so a connection keeps its worker while others come and go.
+     */
+    private int owner(Connection connection){
+        return (connection.getId().asLongText().hashCode() & Integer.MAX_VALUE) % workers.length;
     }
 
     private void putOrPush(Packet ref){
@@ -132,34 +252,11 @@ public class PushCenter implements Runnable{
         }
     }
 
-    private Packet take() throws InterruptedException{
-        Packet packet = retryQueue.peek();
-        if(packet != null){
-            retryQueue.poll();
-        } else{
-            ConsumerRecord<byte[], byte[]> record = pushQueue.take();
-            packet = new Packet();
-            //
-            packet.setCmd(Command.PUSH.getCmd());
-            packet.setOpaque(IdService.I.getId());
-
-            Header header = new Header(record.topic(), record.partition(), record.offset(), IdService.I.getId());
-            header.setSign(Header.Sign.PUSH.getSign());
-            byte[] headerInBytes = SerializerImpl.getFastJsonSerializer().serialize(header);
-            //
-            ByteBuffer buffer = ByteBuffer.allocate(4 + headerInBytes.length + 4 + record.key().length + 4 + record.value().length);
-            buffer.putInt(headerInBytes.length);
-            buffer.put(headerInBytes);
-            //
-            buffer.putInt(record.key().length);
-            buffer.put(record.key());
-            //
-            buffer.putInt(record.value().length);
-            buffer.put(record.value());
-            //
-            packet.setBody(buffer);
-        }
-        return packet;
+    /**
+     * the offsets to resume fetching from, everything before them is journaled.
+     */
+    public Map<TopicPartition, Long> getRecoveredOffsets() {
+        return recoveredOffsets;
     }
 
     private void checkState(){
@@ -171,6 +268,323 @@ public class PushCenter implements Runnable{
     public void close() {
         ((DefaultFixedTimeRepushPolicy) this.repushPolicy).close();
         this.start.compareAndSet(true, false);
-        this.worker.interrupt();
+        for(PushWorker worker : workers){
+            worker.thread.interrupt();
+        }
+        if(this.journal != null){
+            this.journal.close();
+        }
+    }
+
+    class PushWorker implements Runnable {
+
+        private final int index;
+
+        private final Thread thread;
+
+        private final LoadBalance<Connection> loadBalance = loadBalancePolicy.create();
+
+        /**
+         * the connections of this worker, rebuilt when the clients change.
+         */
+        private List<Connection> owned = Collections.emptyList();
+
+        private int ownedVersion = -1;
+
+        private final List<Connection> eligible = new ArrayList<>();
+
+        /**
+         * records of the partitions of this worker.
+         */
+        private final RingBuffer<ConsumerRecord<byte[], byte[]>> queue = new RingBuffer<>(queueSize, waitStrategy);
+
+        private final List<ConsumerRecord<byte[], byte[]>> drained = new ArrayList<>(BATCH_SIZE);
+
+        /**
+         * packets of the records drained in one go, journaled already.
+         */
+        private final ArrayDeque<Packet> batch = new ArrayDeque<>(BATCH_SIZE);
+
+        /**
+         * writes of the batch not handed to their event loop yet.
+         */
+        private final Map<Connection, List<PendingWrite>> pending = new LinkedHashMap<>();
+
+        /**
+         * pending writes to connections reading batched frames, and when the first of them came.
+         */
+        private int batchable;
+
+        private long firstBatchableNanos;
+
+        PushWorker(int index){
+            this.index = index;
+            this.thread = new Thread(this, "push-worker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(start.get()){
+                Packet ref = null;
+                try {
+                    final Packet packet = take();
+                    if(packet == null){
+                        continue;
+                    }
+                    ref = packet;
+                    if(!push(packet, this)){
+                        handBack(packet);
+                    }
+                } catch (InterruptedException ex) {
+                    LOGGER.error("InterruptedException", ex);
+                } catch (ChannelInactiveException ex){
+                    LOGGER.error("ChannelInactiveException", ex);
+                    if(ref != null){
+                        putOrPush(ref);
+                    }
+                }
+            }
+            flush();
+        }
+
+        private Packet take() throws InterruptedException{
+            //the writes of the previous batch go out before a new one starts, unless they linger for more records
+            if(batch.isEmpty()){
+                linger();
+                if(batch.isEmpty()){
+                    flush();
+                }
+            }
+            //waits on both queues, a worker owning no partition still takes the packets the others hand back
+            int counter = 0;
+            while(start.get()){
+                //packets handed back are only taken by a worker that can place them
+                Packet packet = hasEligible() ? retryQueue.poll() : null;
+                if(packet != null){
+                    return packet;
+                }
+                //records the journal did not take are staged again before any new one
+                if(batch.isEmpty() && (!drained.isEmpty() || queue.drainTo(drained, BATCH_SIZE) > 0)){
+                    if(!stage() && batch.isEmpty()){
+                        //the journal takes none of them, back off before the next try
+                        TimeUnit.MILLISECONDS.sleep(AWAIT_MS);
+                    }
+                }
+                packet = batch.poll();
+                if(packet != null){
+                    return packet;
+                }
+                if(Thread.interrupted()){
+                    throw new InterruptedException();
+                }
+                counter = waitStrategy.idle(counter);
+            }
+            return null;
+        }
+
+        private List<Connection> owned(){
+            ClientRegistry registry = clientRegistry();
+            int version = registry.getVersion();
+            if(version != ownedVersion){
+                List<Connection> connections = new ArrayList<>();
+                for(Connection connection : registry.getClients()){
+                    if(owner(connection) == index){
+                        connections.add(connection);
+                    }
+                }
+                owned = connections;
+                ownedVersion = version;
+            }
+            return owned;
+        }
+
+        private boolean hasEligible(){
+            for(Connection connection : owned()){
+                if(windows.isEligible(connection)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * encode the drained records and journal them before any of them is pushed, so even a packet handed to
+         * another worker or the retry queue can not be journaled after a later offset of its partition.
+         * The batch waits for one flush of the journal. A record the journal fails to take is not pushed, it and the
+         * ones after it stay drained for the next try.
+         * @return false if some records are left
+         */
+        private boolean stage(){
+            AppendResult last = null;
+            int staged = 0;
+            for(ConsumerRecord<byte[], byte[]> record : drained){
+                Packet packet = new Packet();
+                //
+                packet.setCmd(Command.PUSH.getCmd());
+                packet.setOpaque(IdService.I.getId());
+
+                long msgId = IdService.I.getId();
+                //binary header, transcoded in push for the clients that do not read it
+                packet.setBody(HeaderCodec.encode(record.topic(), record.partition(), record.offset(), msgId,
+                        Header.Sign.PUSH.getSign(), (byte) 0, (byte) 0, record.key(), record.value()));
+                //
+                if(journal != null){
+                    AppendResult result = journal.put(msgId, record.partition(), record.offset(), packet);
+                    if(!result.isOk()){
+                        break;
+                    }
+                    last = result;
+                }
+                batch.add(packet);
+                staged++;
+            }
+            if(last != null && !journal.awaitFlush(last)){
+                LOGGER.warn("flush push journal timeout, {} records are pushed before they are on disk", staged);
+            }
+            drained.subList(0, staged).clear();
+            return drained.isEmpty();
+        }
+
+        /**
+         * none of the connections of this worker can take the packet, it goes to the retry queue for the other
+         * workers. While that is full the worker waits for a connection of its own.
+         */
+        private void handBack(Packet packet) throws InterruptedException, ChannelInactiveException {
+            while(start.get()){
+                if(retryQueue.offer(packet)){
+                    return;
+                }
+                flush();
+                windows.await(AWAIT_MS);
+                if(push(packet, this)){
+                    return;
+                }
+            }
+        }
+
+        /**
+         * a partial batched frame waits for more records, up to the linger from its first record.
+         */
+        private void linger() throws InterruptedException{
+            if(batchable == 0 || batchable >= batchRecords || lingerNanos <= 0){
+                return;
+            }
+            long remaining = lingerNanos - (System.nanoTime() - firstBatchableNanos);
+            if(remaining > 0){
+                ConsumerRecord<byte[], byte[]> record = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if(record != null){
+                    drained.add(record);
+                    queue.drainTo(drained, BATCH_SIZE - 1);
+                    stage();
+                }
+            }
+        }
+
+        void write(Connection connection, Packet packet, ChannelFutureListener listener){
+            List<PendingWrite> writes = pending.get(connection);
+            if(writes == null){
+                writes = new ArrayList<>();
+                pending.put(connection, writes);
+            }
+            ChannelPromise promise = connection.getChannel().newPromise();
+            promise.addListener(listener);
+            writes.add(new PendingWrite(packet, promise));
+            if(BatchCodec.supportsBatch(connection) && batchable++ == 0){
+                firstBatchableNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * one event loop task and one flush per channel for the whole batch, packed in batched frames for the
+         * clients reading them.
+         */
+        void flush(){
+            if(pending.isEmpty()){
+                return;
+            }
+            for(Map.Entry<Connection, List<PendingWrite>> entry : pending.entrySet()){
+                final Channel channel = entry.getKey().getChannel();
+                final List<PendingWrite> writes = BatchCodec.supportsBatch(entry.getKey()) ? pack(channel, entry.getValue()) : entry.getValue();
+                try {
+                    channel.eventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for(PendingWrite write : writes){
+                                channel.write(write.packet, write.promise);
+                            }
+                            channel.flush();
+                        }
+                    });
+                } catch (RejectedExecutionException ex){
+                    for(PendingWrite write : writes){
+                        write.promise.tryFailure(ex);
+                    }
+                }
+            }
+            pending.clear();
+            batchable = 0;
+        }
+
+        /**
+         * group the writes in frames of up to batch records or batch bytes, the promise of a frame completes the
+         * ones of its records.
+         */
+        private List<PendingWrite> pack(Channel channel, List<PendingWrite> writes){
+            if(writes.size() == 1){
+                return writes;
+            }
+            List<PendingWrite> frames = new ArrayList<>();
+            List<PendingWrite> group = new ArrayList<>();
+            long bytes = 0;
+            for(PendingWrite write : writes){
+                int size = write.packet.getBody().remaining();
+                if(!group.isEmpty() && (group.size() >= batchRecords || bytes + size > batchBytes)){
+                    frames.add(frame(channel, group));
+                    group = new ArrayList<>();
+                    bytes = 0;
+                }
+                group.add(write);
+                bytes += size;
+            }
+            frames.add(frame(channel, group));
+            return frames;
+        }
+
+        private PendingWrite frame(Channel channel, final List<PendingWrite> group){
+            if(group.size() == 1){
+                return group.get(0);
+            }
+            List<Packet> packets = new ArrayList<>(group.size());
+            for(PendingWrite write : group){
+                packets.add(write.packet);
+            }
+            ChannelPromise promise = channel.newPromise();
+            promise.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    for(PendingWrite write : group){
+                        if(future.isSuccess()){
+                            write.promise.trySuccess();
+                        } else{
+                            write.promise.tryFailure(future.cause());
+                        }
+                    }
+                }
+            });
+            return new PendingWrite(BatchCodec.encode(IdService.I.getId(), packets), promise);
+        }
+    }
+
+    static class PendingWrite {
+
+        final Packet packet;
+
+        final ChannelPromise promise;
+
+        PendingWrite(Packet packet, ChannelPromise promise){
+            this.packet = packet;
+            this.promise = promise;
+        }
     }
 }
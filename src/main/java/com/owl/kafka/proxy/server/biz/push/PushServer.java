@@ -52,6 +52,7 @@ public class PushServer {
 
     public void start(){
         this.pushCenter.start();
+        this.consumer.seekOnAssigned(this.pushCenter.getRecoveredOffsets());
         this.nettyServer.start();
         this.consumer.start();
     }
@@ -0,0 +1,164 @@
+package com.owl.kafka.proxy.server.biz.push;
+
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-flight pushes of each connection. A message takes a slot of the window of the connection it is pushed to and
+ * gives it back once acked, failed or repushed elsewhere, so a slow client stops getting messages at its window
+ * while the fast ones keep theirs busy.
+ * @Author: Tboy
+ */
+public class PushWindows {
+
+    public static final PushWindows I = new PushWindows();
+
+    private final int windowSize = ServerConfigs.I.getServerPushWindowSize();
+
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * msgId to the window it was pushed to.
+     */
+    private final ConcurrentHashMap<Long, Slot> inFlight = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private volatile int waiting;
+
+    public boolean isEligible(Connection connection){
+        return connection.isActive() && connection.isWritable() && window(connection).outstanding.get() < windowSize;
+    }
+
+    public int getOutstanding(Connection connection){
+        return window(connection).outstanding.get();
+    }
+
+    /**
+     * ewma of the ack latency of the connection in nanos, 0 until its first ack.
+     */
+    public double getLatency(Connection connection){
+        return window(connection).latency;
+    }
+
+    /**
+     * take a slot of the window of the connection for the message, a slot it held elsewhere is given back.
+     */
+    public boolean acquire(Connection connection, long msgId){
+        Window window = window(connection);
+        for(;;){
+            int current = window.outstanding.get();
+            if(current >= windowSize){
+                return false;
+            }
+            if(window.outstanding.compareAndSet(current, current + 1)){
+                break;
+            }
+        }
+        Slot previous = inFlight.put(msgId, new Slot(window, System.nanoTime()));
+        if(previous != null){
+            previous.window.outstanding.decrementAndGet();
+            signal();
+        }
+        return true;
+    }
+
+    /**
+     * the message was acked, its latency is sampled before its slot is given back.
+     */
+    public void ack(long msgId){
+        Slot slot = inFlight.remove(msgId);
+        if(slot != null){
+            slot.window.sample(System.nanoTime() - slot.timestamp);
+            slot.window.outstanding.decrementAndGet();
+            signal();
+        }
+    }
+
+    public void release(long msgId){
+        Slot slot = inFlight.remove(msgId);
+        if(slot != null){
+            slot.window.outstanding.decrementAndGet();
+            signal();
+        }
+    }
+
+    public void remove(Connection connection){
+        windows.remove(connection.getId().asLongText());
+        signal();
+    }
+
+    /**
+     * wake up the pusher parked in {@link #await(long)}, only costs a lock when it is parked.
+     */
+    public void signal(){
+        if(waiting > 0){
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * park until a slot is released, a connection changes or the timeout is over.
+     */
+    public void await(long timeoutMs) throws InterruptedException{
+        lock.lock();
+        try {
+            waiting++;
+            available.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    private Window window(Connection connection){
+        String key = connection.getId().asLongText();
+        Window window = windows.get(key);
+        if(window == null){
+            Window created = new Window();
+            window = windows.putIfAbsent(key, created);
+            if(window == null){
+                window = created;
+            }
+        }
+        return window;
+    }
+
+    static class Window {
+
+        private static final double ALPHA = 0.2;
+
+        final AtomicInteger outstanding = new AtomicInteger(0);
+
+        volatile double latency;
+
+        synchronized void sample(long nanos){
+            this.latency = latency == 0 ? nanos : latency + ALPHA * (nanos - latency);
+        }
+    }
+
+    static class Slot {
+
+        final Window window;
+
+        final long timestamp;
+
+        Slot(Window window, long timestamp){
+            this.window = window;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.owl.kafka.proxy.server.biz.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi producer multi consumer queue. Every slot carries a sequence telling whether it is free
+ * for the producer of a lap or filled for its consumer, producers and consumers only race on a CAS of the padded tail
+ * and head counters. Blocking operations wait with the {@link WaitStrategy} instead of a lock and conditions.
+ * @Author: Tboy
+ */
+public class RingBuffer<E> {
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> buffer;
+
+    private final AtomicLongArray sequences;
+
+    private final Sequence head = new Sequence();
+
+    private final Sequence tail = new Sequence();
+
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy){
+        int size = 1;
+        while(size < capacity){
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++){
+            this.sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public boolean offer(E e){
+        if(e == null){
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        for(;;){
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if(diff == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    buffer.lazySet(index, e);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if(diff < 0){
+                //the consumer of the previous lap did not free the slot, full
+                return false;
+            } else{
+                position = tail.get();
+            }
+        }
+    }
+
+    public E poll(){
+        long position = head.get();
+        for(;;){
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if(diff == 0){
+                if(head.compareAndSet(position, position + 1)){
+                    E e = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.set(index, position + capacity);
+                    return e;
+                }
+                position = head.get();
+            } else if(diff < 0){
+                return null;
+            } else{
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * the head if it is published, a hint only while other consumers are polling.
+     */
+    public E peek(){
+        long position = head.get();
+        int index = (int) position & mask;
+        if(sequences.get(index) == position + 1){
+            return buffer.get(index);
+        }
+        return null;
+    }
+
+    /**
+     * move up to max published elements at once, one CAS claims the whole batch.
+     * @return the number of elements moved
+     */
+    public int drainTo(Collection<? super E> collection, int max){
+        for(;;){
+            long position = head.get();
+            int count = 0;
+            while(count < max && sequences.get((int)(position + count) & mask) == position + count + 1){
+                count++;
+            }
+            if(count == 0){
+                return 0;
+            }
+            if(head.compareAndSet(position, position + count)){
+                for(int i = 0; i < count; i++){
+                    int index = (int)(position + i) & mask;
+                    collection.add(buffer.get(index));
+                    buffer.lazySet(index, null);
+                    sequences.set(index, position + i + capacity);
+                }
+                return count;
+            }
+        }
+    }
+
+    public void put(E e) throws InterruptedException{
+        int counter = 0;
+        while(!offer(e)){
+            checkInterrupted();
+            counter = waitStrategy.idle(counter);
+        }
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException{
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int counter = 0;
+        while(!offer(e)){
+            checkInterrupted();
+            if(System.nanoTime() - deadline >= 0){
+                return false;
+            }
+            counter = waitStrategy.idle(counter);
+        }
+        return true;
+    }
+
+    public E take() throws InterruptedException{
+        int counter = 0;
+        E e;
+        while((e = poll()) == null){
+            checkInterrupted();
+            counter = waitStrategy.idle(counter);
+        }
+        return e;
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException{
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int counter = 0;
+        E e;
+        while((e = poll()) == null){
+            checkInterrupted();
+            if(System.nanoTime() - deadline >= 0){
+                return null;
+            }
+            counter = waitStrategy.idle(counter);
+        }
+        return e;
+    }
+
+    public int size(){
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty(){
+        return tail.get() == head.get();
+    }
+
+    public int capacity(){
+        return capacity;
+    }
+
+    private static void checkInterrupted() throws InterruptedException{
+        if(Thread.interrupted()){
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * a counter alone on its cache lines, the padding fields of the super and sub class surround it.
+     */
+    static class LhsPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class Value extends LhsPadding {
+        protected volatile long value;
+    }
+
+    static class Sequence extends Value {
+
+        private static final AtomicLongFieldUpdater<Value> UPDATER = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        long get(){
+            return value;
+        }
+
+        boolean compareAndSet(long expect, long update){
+            return UPDATER.compareAndSet(this, expect, update);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.owl.kafka.proxy.server.biz.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a full or empty {@link RingBuffer}, each call is one more failed attempt.
+ * @Author: Tboy
+ */
+public enum WaitStrategy {
+
+    /**
+     * lowest latency, burns a core while waiting.
+     */
+    SPIN {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+    },
+
+    /**
+     * spin a little, then give the core away between attempts.
+     */
+    YIELD {
+        @Override
+        public int idle(int counter) {
+            if(counter >= SPIN_TRIES){
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    },
+
+    /**
+     * spin, yield, then park with a backoff up to {@link #MAX_PARK_NANOS}, nearly free while idle.
+     */
+    PARK {
+        @Override
+        public int idle(int counter) {
+            if(counter >= SPIN_TRIES + YIELD_TRIES){
+                int shift = Math.min(counter - SPIN_TRIES - YIELD_TRIES, 10);
+                LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << shift, MAX_PARK_NANOS));
+            } else if(counter >= SPIN_TRIES){
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final int YIELD_TRIES = 100;
+
+    private static final long MIN_PARK_NANOS = 1000;
+
+    private static final long MAX_PARK_NANOS = 1000 * 1000;
+
+    public abstract int idle(int counter);
+
+    public static WaitStrategy of(String name){
+        for(WaitStrategy strategy : values()){
+            if(strategy.name().equalsIgnoreCase(name)){
+                return strategy;
+            }
+        }
+        return PARK;
+    }
+}
@@ -5,12 +5,14 @@ import com.owl.kafka.client.proxy.service.RegistryService;
 import com.owl.kafka.client.proxy.transport.Address;
 import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
 
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @Author: Tboy
@@ -19,6 +21,8 @@ public class ClientRegistry {
 
     private final CopyOnWriteArraySet<Connection> localRegistry = new CopyOnWriteArraySet<>();
 
+    private final AtomicInteger version = new AtomicInteger(0);
+
     private final RegistryService registryService;
 
     public ClientRegistry(RegistryService registryService){
@@ -26,7 +30,10 @@ public class ClientRegistry {
     }
 
     public void register(Connection connection){
-        localRegistry.add(connection);
+        if(localRegistry.add(connection)){
+            version.incrementAndGet();
+            PushWindows.I.signal();
+        }
         //
         RegisterMetadata metadata = toRegisterMetadata(connection);
         registryService.register(metadata);
@@ -34,7 +41,10 @@ public class ClientRegistry {
     }
 
     public void unregister(Connection connection){
-        localRegistry.remove(connection.getId().asLongText());
+        if(localRegistry.remove(connection)){
+            version.incrementAndGet();
+        }
+        PushWindows.I.remove(connection);
         //
         RegisterMetadata metadata = toRegisterMetadata(connection);
         registryService.unregister(metadata);
@@ -53,4 +63,11 @@ public class ClientRegistry {
         return new ArrayList<>(localRegistry);
     }
 
+    /**
+     * changes whenever a client registers or unregisters, so what is derived from the clients can be cached.
+     */
+    public int getVersion(){
+        return version.get();
+    }
+
 }
@@ -3,13 +3,13 @@ package com.owl.kafka.proxy.server.biz.service;
 import com.owl.kafka.client.consumer.Record;
 import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.proxy.util.MessageCodec;
 import com.owl.kafka.client.util.Preconditions;
 import com.owl.kafka.proxy.server.biz.bo.ResendPacket;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
 import com.owl.kafka.proxy.server.consumer.DLQConsumer;
 
 import com.owl.kafka.proxy.server.consumer.ProxyConsumer;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.Producer;
@@ -78,7 +78,7 @@ public class DLQService {
         Preconditions.checkArgument(resendPacket.getRepost() >= ServerConfigs.I.getServerMessageRepostTimes(), "resendPacket must repost more than " + ServerConfigs.I.getServerMessageRepostTimes() + " times");
         try {
             Packet packet = resendPacket.getPacket();
-            Message message = MessageCodec.decode(packet.getBody());
+            Message message = HeaderCodec.decode(packet.getBody());
             String dlp = String.format(this.topic + DLQ_DATA_PATH, resendPacket.getMsgId());
             ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(this.topic, 0, message.getKey(), message.getValue());
             this.producer.send(record, new Callback() {
@@ -104,7 +104,7 @@ public class DLQService {
     public void write(long msgId, Packet packet){
         try {
             String dlp = String.format(this.topic + DLQ_DATA_PATH, msgId);
-            Message message = MessageCodec.decode(packet.getBody());
+            Message message = HeaderCodec.decode(packet.getBody());
             ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(this.topic, 0, message.getKey(), message.getValue());
             this.producer.send(record, new Callback() {
 
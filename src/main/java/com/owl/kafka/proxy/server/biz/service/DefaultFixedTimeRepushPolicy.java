@@ -1,9 +1,7 @@
 package com.owl.kafka.proxy.server.biz.service;
 
 import com.owl.kafka.client.proxy.transport.exceptions.ChannelInactiveException;
-import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.proxy.util.MessageCodec;
 import com.owl.kafka.proxy.server.biz.bo.ResendPacket;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
 import com.owl.kafka.proxy.server.biz.push.PushCenter;
@@ -52,12 +50,12 @@ public class DefaultFixedTimeRepushPolicy implements RepushPolicy<Packet>, Runna
             try {
                 ResendPacket first = MessageHolder.MSG_QUEUE.peek();
                 if(first == null){
-                    return;
+                    TimeUnit.MILLISECONDS.sleep(30);
+                    continue;
                 }
                 long now = SystemClock.millisClock().now();
                 if(first.getRepost() >= reposts){
-                    Message message = MessageCodec.decode(first.getPacket().getBody());
-                    MessageHolder.fastRemove(message);
+                    MessageHolder.fastRemove(first.getMsgId());
                     LOGGER.warn("packet repost fail ", first);
                     InstanceHolder.I.getDLQService().write(first);
                     continue;
@@ -66,6 +64,10 @@ public class DefaultFixedTimeRepushPolicy implements RepushPolicy<Packet>, Runna
                     MessageHolder.MSG_QUEUE.poll();
                     first.setRepost(first.getRepost() + 1);
                     first.setTimestamp(now);
+                    PushJournal journal = InstanceHolder.I.getPushJournal();
+                    if(journal != null){
+                        journal.repost(first.getMsgId(), first.getRepost(), now);
+                    }
                     try {
                         repush(first.getPacket());
                     } finally{
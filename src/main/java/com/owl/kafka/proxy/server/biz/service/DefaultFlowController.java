@@ -1,51 +1,98 @@
 package com.owl.kafka.proxy.server.biz.service;
 
-import com.owl.kafka.client.proxy.transport.protocol.Packet;
 import com.owl.kafka.client.util.Constants;
-import com.owl.kafka.proxy.server.biz.bo.ControlResult;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
-import com.owl.kafka.proxy.server.biz.push.PushCenter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Count and byte credits for the messages pushed and not acked yet. The push worker parks while either is used up and
+ * is signaled by the acks, a single message larger than the byte credit still goes out once nothing else is in flight.
  * @Author: Tboy
  */
-public class DefaultFlowController implements FlowController<Packet> {
+public class DefaultFlowController implements FlowController {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(PushCenter.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefaultFlowController.class);
+
+    private static final long WARN_BLOCKED_MS = 1000;
 
     private final long ALLOW_MOMERY_SIZE = ServerConfigs.I.getServerFlowControlMessageSize() * Constants.M_BYTES;
 
     private final long ALLOW_COUNT = ServerConfigs.I.getServerFlowControlMessageCount();
 
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private long count;
+
+    private long size;
+
+    @Override
+    public void acquire(long size) throws InterruptedException {
+        lock.lock();
+        try {
+            if(isFull(size)){
+                long start = System.nanoTime();
+                do {
+                    available.await();
+                } while(isFull(size));
+                long blocked = System.nanoTime() - start;
+                if(blocked >= TimeUnit.MILLISECONDS.toNanos(WARN_BLOCKED_MS)){
+                    LOGGER.warn("push blocked {} ms by flow control, in flight count : {}, size : {}",
+                            new Object[]{TimeUnit.NANOSECONDS.toMillis(blocked), this.count, this.size});
+                }
+            }
+            this.count++;
+            this.size += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
-    public ControlResult flowControl(Packet packet) {
-        ControlResult result = ControlResult.ALLOWED;
-
-        if(MessageHolder.memorySize() > ALLOW_MOMERY_SIZE){
-            result = new ControlResult(false,
-                    "message size overflow, real size : " + MessageHolder.memorySize() + " threshold : " + ALLOW_MOMERY_SIZE);
-            doFlowControl();
-            return result;
+    public boolean tryAcquire(long size) {
+        lock.lock();
+        try {
+            if(isFull(size)){
+                return false;
+            }
+            this.count++;
+            this.size += size;
+            return true;
+        } finally {
+            lock.unlock();
         }
-        if(MessageHolder.count() > ALLOW_COUNT){
-            result = new ControlResult(false,
-                    "message count overflow, real count : " + MessageHolder.count() + " threshold : " + ALLOW_COUNT);
-            doFlowControl();
-            return result;
+    }
+
+    @Override
+    public void forceAcquire(long size) {
+        lock.lock();
+        try {
+            this.count++;
+            this.size += size;
+        } finally {
+            lock.unlock();
         }
-        return result;
     }
 
-    private void doFlowControl(){
-        LOGGER.warn("do memory flow control ...");
+    @Override
+    public void release(long size) {
+        lock.lock();
         try {
-            TimeUnit.MILLISECONDS.sleep(5);
-        } catch (InterruptedException e) {
-            //
+            this.count--;
+            this.size -= size;
+            available.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
+
+    private boolean isFull(long size){
+        return count >= ALLOW_COUNT || (count > 0 && this.size + size > ALLOW_MOMERY_SIZE);
+    }
 }
@@ -0,0 +1,37 @@
+package com.owl.kafka.proxy.server.biz.service;
+
+import com.owl.kafka.client.proxy.service.LoadBalance;
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the connection with the lowest expected wait : the ewma of its ack latency times its unacked pushes plus
+ * the new one. A connection without ack yet costs nothing, so a new client gets probed at once.
+ * @Author: Tboy
+ */
+public class EwmaLoadBalance implements LoadBalance<Connection> {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    public Connection select(List<Connection> invokers) {
+        int size = invokers.size();
+        if(size <= 0){
+            return null;
+        }
+        int start = (index.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Connection selected = null;
+        double least = Double.MAX_VALUE;
+        for(int i = 0; i < size; i++){
+            Connection connection = invokers.get((start + i) % size);
+            double cost = PushWindows.I.getLatency(connection) * (PushWindows.I.getOutstanding(connection) + 1);
+            if(cost < least){
+                least = cost;
+                selected = connection;
+            }
+        }
+        return selected;
+    }
+}
@@ -1,11 +1,26 @@
 package com.owl.kafka.proxy.server.biz.service;
 
-import com.owl.kafka.proxy.server.biz.bo.ControlResult;
-
 /**
+ * Admission control by credits : a message takes its credit before it is pushed and gives it back once it is acked
+ * or its push failed.
  * @Author: Tboy
  */
-public interface FlowController<T> {
+public interface FlowController {
+
+    /**
+     * block until the credit of a message of this size is available.
+     */
+    void acquire(long size) throws InterruptedException;
+
+    /**
+     * take the credit if it is available now.
+     */
+    boolean tryAcquire(long size);
+
+    /**
+     * take the credit without waiting, for messages held already like the replayed ones.
+     */
+    void forceAcquire(long size);
 
-    ControlResult flowControl(T t);
+    void release(long size);
 }
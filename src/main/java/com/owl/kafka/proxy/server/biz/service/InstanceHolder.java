@@ -16,6 +16,8 @@ public class InstanceHolder {
 
     private RegistryCenter registryCenter;
 
+    private PushJournal pushJournal;
+
     public RegistryCenter getRegistryCenter() {
         return registryCenter;
     }
@@ -32,6 +34,14 @@ public class InstanceHolder {
         return this.dlqService;
     }
 
+    public PushJournal getPushJournal() {
+        return pushJournal;
+    }
+
+    public void setPushJournal(PushJournal pushJournal) {
+        this.pushJournal = pushJournal;
+    }
+
     public ZookeeperClient getZookeeperClient() {
         return zookeeperClient;
     }
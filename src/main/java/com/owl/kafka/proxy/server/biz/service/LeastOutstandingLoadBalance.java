@@ -0,0 +1,36 @@
+package com.owl.kafka.proxy.server.biz.service;
+
+import com.owl.kafka.client.proxy.service.LoadBalance;
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the connection with the fewest unacked pushes, the scan starts from a rotating index so ties are spread.
+ * @Author: Tboy
+ */
+public class LeastOutstandingLoadBalance implements LoadBalance<Connection> {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    public Connection select(List<Connection> invokers) {
+        int size = invokers.size();
+        if(size <= 0){
+            return null;
+        }
+        int start = (index.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Connection selected = null;
+        int least = Integer.MAX_VALUE;
+        for(int i = 0; i < size; i++){
+            Connection connection = invokers.get((start + i) % size);
+            int outstanding = PushWindows.I.getOutstanding(connection);
+            if(outstanding < least){
+                least = outstanding;
+                selected = connection;
+            }
+        }
+        return selected;
+    }
+}
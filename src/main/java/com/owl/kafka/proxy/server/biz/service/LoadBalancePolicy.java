@@ -0,0 +1,49 @@
+package com.owl.kafka.proxy.server.biz.service;
+
+import com.owl.kafka.client.proxy.service.LoadBalance;
+import com.owl.kafka.client.proxy.transport.Connection;
+
+/**
+ * @Author: Tboy
+ */
+public enum LoadBalancePolicy {
+
+    ROUND_ROBIN,
+
+    /**
+     * fewest unacked pushes, follows the capacity of the clients.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * fewer unacked pushes of two random connections.
+     */
+    POWER_OF_TWO_CHOICES,
+
+    /**
+     * lowest ack latency ewma weighted by the unacked pushes.
+     */
+    EWMA;
+
+    public LoadBalance<Connection> create(){
+        switch (this){
+            case LEAST_OUTSTANDING:
+                return new LeastOutstandingLoadBalance();
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoicesLoadBalance();
+            case EWMA:
+                return new EwmaLoadBalance();
+            default:
+                return new RoundRobinLoadBalance();
+        }
+    }
+
+    public static LoadBalancePolicy of(String policy){
+        for(LoadBalancePolicy loadBalancePolicy : values()){
+            if(loadBalancePolicy.name().equalsIgnoreCase(policy)){
+                return loadBalancePolicy;
+            }
+        }
+        return ROUND_ROBIN;
+    }
+}
@@ -1,12 +1,12 @@
 package com.owl.kafka.proxy.server.biz.service;
 
-import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.proxy.util.MessageCodec;
 import com.owl.kafka.proxy.server.biz.bo.FastResendMessage;
 import com.owl.kafka.proxy.server.biz.bo.ResendPacket;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 
-
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
@@ -28,6 +28,11 @@ public class MessageHolder {
 
     private static final AtomicLong COUNT = new AtomicLong(0);
 
+    /**
+     * credits of the held messages, released by the acks.
+     */
+    public static final DefaultFlowController FLOW_CONTROLLER = new DefaultFlowController();
+
     public static long memorySize(){
         return MEMORY_SIZE.get();
     }
@@ -38,36 +43,84 @@ public class MessageHolder {
 
     private static final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    public static void fastPut(Packet packet){
+    /**
+     * @return false if the message is held already, the credit taken for it is then not used
+     */
+    public static boolean fastPut(Packet packet){
         if(packet == null){
-            return;
+            return false;
+        }
+        return put(packet, 1, SystemClock.millisClock().now());
+    }
+
+    /**
+     * put back a message replayed from the {@link PushJournal}, keeping its repush schedule.
+     */
+    public static void restore(Packet packet, int repost, long timestamp){
+        if(put(packet, repost, timestamp)){
+            FLOW_CONTROLLER.forceAcquire(sizeOf(packet));
         }
+    }
+
+    public static FastResendMessage get(long msgId){
+        return MSG_MAPPER.get(msgId);
+    }
+
+    public static boolean contains(long msgId){
+        return MSG_MAPPER.containsKey(msgId);
+    }
+
+    /**
+     * header, key and value without their length fields.
+     */
+    public static long sizeOf(Packet packet){
+        return packet.getBody().remaining() - 4 * 3;
+    }
+
+    private static boolean put(Packet packet, int repost, long timestamp){
         lock.writeLock().lock();
         try {
-            Message message = MessageCodec.decode(packet.getBody());
-            MSG_QUEUE.put(new ResendPacket(message.getHeader().getMsgId()));
-            long size = message.getHeaderInBytes().length + message.getKey().length + message.getValue().length;
-            MSG_MAPPER.put(message.getHeader().getMsgId(), new FastResendMessage(message.getHeader().getMsgId(), message.getHeaderInBytes(), size));
+            long msgId = HeaderCodec.decodeMsgId(packet.getBody());
+            if(MSG_MAPPER.containsKey(msgId)){
+                return false;
+            }
+            ResendPacket resendPacket = new ResendPacket(msgId, packet);
+            resendPacket.setRepost(repost);
+            resendPacket.setTimestamp(timestamp);
+            MSG_QUEUE.put(resendPacket);
+            ByteBuffer body = packet.getBody().duplicate();
+            byte[] headerInBytes = new byte[body.getInt()];
+            body.get(headerInBytes);
+            long size = sizeOf(packet);
+            MSG_MAPPER.put(msgId, new FastResendMessage(msgId, headerInBytes, size));
             COUNT.incrementAndGet();
             MEMORY_SIZE.addAndGet(size);
+            return true;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    public static boolean fastRemove(Message message){
+    public static boolean fastRemove(long msgId){
         boolean result;
         lock.writeLock().lock();
         try {
-            result = MSG_QUEUE.remove(new ResendPacket(message.getHeader().getMsgId()));
-            FastResendMessage frm = MSG_MAPPER.remove(message.getHeader().getMsgId());
+            result = MSG_QUEUE.remove(new ResendPacket(msgId));
+            FastResendMessage frm = MSG_MAPPER.remove(msgId);
             if(frm != null){
                 COUNT.decrementAndGet();
                 MEMORY_SIZE.addAndGet(frm.getSize()*(-1));
+                FLOW_CONTROLLER.release(frm.getSize());
             }
-            return result;
+            PushWindows.I.release(msgId);
         } finally {
             lock.writeLock().unlock();
         }
+        //journaled out of the lock, the ack path runs on the io threads
+        PushJournal journal = InstanceHolder.I.getPushJournal();
+        if(journal != null){
+            journal.ack(msgId);
+        }
+        return result;
     }
 }
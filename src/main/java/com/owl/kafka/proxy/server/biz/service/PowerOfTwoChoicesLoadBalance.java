@@ -0,0 +1,35 @@
+package com.owl.kafka.proxy.server.biz.service;
+
+import com.owl.kafka.client.proxy.service.LoadBalance;
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two connections at random and keeps the one with fewer unacked pushes, close to least outstanding without
+ * scanning every connection nor sending every push to the same one.
+ * @Author: Tboy
+ */
+public class PowerOfTwoChoicesLoadBalance implements LoadBalance<Connection> {
+
+    public Connection select(List<Connection> invokers) {
+        int size = invokers.size();
+        if(size <= 0){
+            return null;
+        }
+        if(size == 1){
+            return invokers.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if(second >= first){
+            second++;
+        }
+        Connection one = invokers.get(first);
+        Connection other = invokers.get(second);
+        return PushWindows.I.getOutstanding(one) <= PushWindows.I.getOutstanding(other) ? one : other;
+    }
+}
@@ -1,33 +1,65 @@
 package com.owl.kafka.proxy.server.biz.service;
 
-import com.owl.kafka.client.proxy.transport.alloc.ByteBufferPool;
+import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.exceptions.ChannelInactiveException;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
 import com.owl.kafka.client.proxy.util.Packets;
+import com.owl.kafka.client.util.NamedThreadFactory;
 import com.owl.kafka.proxy.server.biz.bo.PullRequest;
+import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
 import com.owl.kafka.proxy.server.biz.pull.PullCenter;
+import com.owl.kafka.proxy.server.biz.pull.PullResponse;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Suspended pull requests wait in arrival order. Producers only signal {@link #notifyMessageArriving()}, the
+ * dispatcher thread then hands the new records to the waiters from the head of the queue and stops at the first one
+ * that is not ready, so each arrival costs one short pull at most. A waiter keeps what it gathered until it holds
+ * its min bytes.
+ * Each waiter is also registered in a hashed timing wheel which answers it with what it gathered, or no message,
+ * once its wait is over.
+ * A connection may pipeline several pull requests, they are tracked by opaque and always answered in the order they
+ * came : a request is only served at the head of its connection, and the timeout of a request answers the earlier
+ * ones of its connection first.
  * @Author: Tboy
  */
 public class PullRequestHoldService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestHoldService.class);
 
-    private final ConcurrentHashMap<String, PullRequest> requestHolder = new ConcurrentHashMap<>();
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(new NamedThreadFactory("pull-suspend-timer"),
+            ServerConfigs.I.getServerPullSuspendTickMs(), TimeUnit.MILLISECONDS, 512);
+
+    private final int pipelineDepth = ServerConfigs.I.getServerPullPipelineDepth();
+
+    /**
+     * the pending requests of each connection, in the order they came.
+     */
+    private final ConcurrentHashMap<String, Pipeline> requestHolder = new ConcurrentHashMap<>();
+
+    private final ConcurrentLinkedDeque<PullRequest> waiters = new ConcurrentLinkedDeque<>();
+
+    private final AtomicBoolean signaled = new AtomicBoolean(false);
 
     private final Thread worker;
 
     private final AtomicBoolean start = new AtomicBoolean(false);
 
-    private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private long lastCheckTimestamp = System.currentTimeMillis();
 
     public PullRequestHoldService(){
         this.start.compareAndSet(false, true);
@@ -36,10 +68,18 @@ public class PullRequestHoldService {
             public void run() {
                 while(start.get()){
                     try {
-                        Thread.sleep(5 * 1000);
-                        checkRequestHolder();
-                    } catch (InterruptedException e) {
-                        //Ignore
+                        if(!signaled.compareAndSet(true, false)){
+                            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS));
+                            signaled.set(false);
+                        }
+                        dispatch();
+                        long now = System.currentTimeMillis();
+                        if(now - lastCheckTimestamp >= CHECK_INTERVAL_MS){
+                            lastCheckTimestamp = now;
+                            purge();
+                        }
+                    } catch (Throwable ex) {
+                        LOGGER.error("dispatch pull request error", ex);
                     }
                 }
             }
@@ -48,47 +88,211 @@ public class PullRequestHoldService {
         this.worker.start();
     }
 
-    public void suspend(PullRequest pullRequest){
-        requestHolder.put(pullRequest.getConnection().getId().asLongText(), pullRequest);
+    public void submit(final PullRequest request){
+        for(;;){
+            Pipeline pipeline = pipeline(request);
+            synchronized (pipeline){
+                if(pipeline.closed){
+                    continue;
+                }
+                if(pipeline.pending.isEmpty()){
+                    PullResponse result = PullCenter.I.pull(request);
+                    if(result != null){
+                        send(request, result);
+                        closeIfEmpty(pipeline);
+                        return;
+                    }
+                }
+                pipeline.pending.offer(request);
+                long delay = request.getSuspendTimestamp() + request.getTimeoutMs() - System.currentTimeMillis();
+                if(delay <= 0){
+                    complete(pipeline, request);
+                    return;
+                }
+                if(pipeline.pending.size() > pipelineDepth){
+                    complete(pipeline, pipeline.pending.peekFirst());
+                }
+                request.setTimeout(timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        expire(request);
+                    }
+                }, delay, TimeUnit.MILLISECONDS));
+            }
+            waiters.offer(request);
+            //records may have arrived between the pull and now
+            notifyMessageArriving();
+            return;
+        }
     }
 
     public void close(){
         this.start.compareAndSet(true, false);
-        this.worker.interrupt();
+        LockSupport.unpark(this.worker);
+        this.timer.stop();
         LOGGER.debug("close PullRequestHoldService ");
     }
 
-    public void checkRequestHolder(){
-        Iterator<Map.Entry<String, PullRequest>> iterator = requestHolder.entrySet().iterator();
+    /**
+     * cheap enough for the kafka poll thread : at most one unpark per dispatch round.
+     */
+    public void notifyMessageArriving(){
+        if(signaled.compareAndSet(false, true)){
+            LockSupport.unpark(this.worker);
+        }
+    }
+
+    private void dispatch(){
+        PullRequest request;
+        while((request = waiters.poll()) != null){
+            Pipeline pipeline = requestHolder.get(key(request.getConnection()));
+            if(pipeline == null){
+                continue;
+            }
+            synchronized (pipeline){
+                //answered already, the waiters of a connection come in order so a live one is always its head
+                if(pipeline.pending.peekFirst() != request){
+                    continue;
+                }
+                PullResponse result = PullCenter.I.pull(request);
+                if(result == null){
+                    waiters.offerFirst(request);
+                    return;
+                }
+                pipeline.pending.poll();
+                request.getTimeout().cancel();
+                send(request, result);
+                closeIfEmpty(pipeline);
+            }
+        }
+    }
+
+    /**
+     * drop the waiters answered already, so an idle queue does not keep them.
+     */
+    private void purge(){
+        Iterator<PullRequest> iterator = waiters.iterator();
         while(iterator.hasNext()){
-            Map.Entry<String, PullRequest> next = iterator.next();
-            PullRequest request = next.getValue();
-            Packet result = PullCenter.I.pull(request, false);
-            boolean execute = executeWhenWakeup(next.getValue(), result);
-            if(execute){
+            if(!isLive(iterator.next())){
                 iterator.remove();
             }
         }
     }
 
-    public void notifyMessageArriving(){
-        checkRequestHolder();
+    private void expire(PullRequest request){
+        Pipeline pipeline = requestHolder.get(key(request.getConnection()));
+        if(pipeline == null){
+            return;
+        }
+        synchronized (pipeline){
+            if(pipeline.contains(request)){
+                complete(pipeline, request);
+            }
+        }
+    }
+
+    /**
+     * answer the pending requests of the pipeline up to the given one with what they gathered.
+     */
+    private void complete(Pipeline pipeline, PullRequest request){
+        PullRequest head;
+        do {
+            head = pipeline.pending.poll();
+            if(head.getTimeout() != null){
+                head.getTimeout().cancel();
+            }
+            PullResponse gathered = head.getResponse();
+            if(gathered != null && !gathered.isEmpty()){
+                head.setResponse(null);
+                send(head, gathered);
+            } else{
+                sendNoMsg(head);
+            }
+        } while(head != request);
+        closeIfEmpty(pipeline);
+    }
+
+    private boolean isLive(PullRequest request){
+        Pipeline pipeline = requestHolder.get(key(request.getConnection()));
+        if(pipeline == null){
+            return false;
+        }
+        synchronized (pipeline){
+            return pipeline.contains(request);
+        }
+    }
+
+    private Pipeline pipeline(PullRequest request){
+        String key = key(request.getConnection());
+        Pipeline pipeline = requestHolder.get(key);
+        if(pipeline == null){
+            Pipeline created = new Pipeline(key);
+            pipeline = requestHolder.putIfAbsent(key, created);
+            if(pipeline == null){
+                pipeline = created;
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * called with the pipeline lock held, a closed pipeline is never used again.
+     */
+    private void closeIfEmpty(Pipeline pipeline){
+        if(pipeline.pending.isEmpty()){
+            pipeline.closed = true;
+            requestHolder.remove(pipeline.key, pipeline);
+        }
+    }
+
+    private String key(Connection connection){
+        return connection.getId().asLongText();
     }
 
-    private boolean executeWhenWakeup(PullRequest request, Packet result){
-        boolean execute = false;
-        try {
-            if(!result.isBodyEmtpy()){
-                request.getConnection().send(result);
-                execute = true;
-            } else if(System.currentTimeMillis() > (request.getSuspendTimestamp() + request.getTimeoutMs())){
-                final Packet packet = Packets.pullNoMsgResp(request.getPacket().getOpaque());
-                request.getConnection().send(packet);
-                execute = true;
+    private void send(PullRequest request, PullResponse result){
+        PullCenter.I.send(request.getConnection(), result);
+    }
+
+    /**
+     * written from an event loop task like the pull responses, so it keeps its place among them.
+     */
+    private void sendNoMsg(PullRequest request){
+        final Connection connection = request.getConnection();
+        final Packet packet = Packets.pullNoMsgResp(request.getPacket().getOpaque());
+        connection.getChannel().eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.send(packet);
+                } catch (ChannelInactiveException e) {
+                    //the client is gone, nobody waits for the response
+                }
+            }
+        });
+    }
+
+    static class Pipeline {
+
+        final String key;
+
+        final ArrayDeque<PullRequest> pending = new ArrayDeque<>();
+
+        boolean closed;
+
+        Pipeline(String key){
+            this.key = key;
+        }
+
+        /**
+         * by identity, a client may reuse an opaque.
+         */
+        boolean contains(PullRequest request){
+            for(PullRequest one : pending){
+                if(one == request){
+                    return true;
+                }
             }
-        } catch (ChannelInactiveException e) {
-            execute = true;
+            return false;
         }
-        return execute;
     }
 }
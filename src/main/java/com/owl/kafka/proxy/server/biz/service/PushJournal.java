@@ -0,0 +1,335 @@
+package com.owl.kafka.proxy.server.biz.service;
+
+import com.owl.kafka.client.proxy.transport.protocol.Command;
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.client.util.NamedThreadFactory;
+import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import com.owl.kafka.proxy.server.biz.file.AppendResult;
+import com.owl.kafka.proxy.server.biz.file.MappedFile;
+import com.owl.kafka.proxy.server.biz.file.MappedFileManager;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the push messages in flight, so a restart rebuilds the repush schedule instead of fetching
+ * them again from kafka. Entries are commit-log records keyed by msgId :
+ * PUT    : partition(4) + offset(8) + repost(4) + timestamp(8) + push packet body
+ * REPOST : repost(4) + timestamp(8)
+ * ACK    : partition(4) + offset(8)
+ * OFFSET : partition(4) + offset(8), the highest journaled offset of the partition
+ * Acked entries are compacted away by moving the live entries out of the oldest segment, which is then reclaimed.
+ * Compaction journals the OFFSET of every partition first, so a restart resumes after the last journaled offset even
+ * once every entry of a partition is acked and reclaimed.
+ * @Author: Tboy
+ */
+public class PushJournal implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushJournal.class);
+
+    private static final byte PUT = 1;
+
+    private static final byte REPOST = 2;
+
+    private static final byte ACK = 3;
+
+    private static final byte OFFSET = 4;
+
+    private static final int PUT_HEAD_SIZE = 4 + 8 + 4 + 8;
+
+    private static final long COMPACT_INTERVAL_MS = 10 * 1000;
+
+    private final String topic = ServerConfigs.I.getServerTopic();
+
+    private final MappedFileManager store;
+
+    private final ConcurrentHashMap<Long, Entry> live = new ConcurrentHashMap<>();
+
+    /**
+     * per partition, the highest offset journaled.
+     */
+    private final ConcurrentHashMap<Integer, Long> journaled = new ConcurrentHashMap<>();
+
+    /**
+     * where the last OFFSET entries start, the segments before it can be reclaimed once no live entry is in them.
+     */
+    private volatile long checkpointOffset;
+
+    private final ScheduledExecutorService compactScheduler;
+
+    public PushJournal(){
+        this.store = new MappedFileManager(ServerConfigs.I.getServerStorePath() + File.separator + "journal", ServerConfigs.I.getServerStoreFlushPolicy(),
+                ServerConfigs.I.getServerStoreFlushIntervalMs(), ServerConfigs.I.getServerStoreFlushPages());
+        this.store.enableReclaim(0, 0);
+        this.compactScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("journal-compact-scheduler"));
+    }
+
+    /**
+     * replay the journal into {@link MessageHolder}.
+     * @return per partition, the offset to resume fetching from
+     */
+    public Map<TopicPartition, Long> start(){
+        this.store.start();
+        this.store.forEach((location, packet) -> replay(location, packet));
+        for(Entry entry : live.values()){
+            Packet packet = read(entry);
+            if(packet == null){
+                continue;
+            }
+            MessageHolder.restore(packet, entry.repost, entry.timestamp);
+        }
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for(Map.Entry<Integer, Long> next : journaled.entrySet()){
+            offsets.put(new TopicPartition(topic, next.getKey()), next.getValue() + 1);
+        }
+        this.checkpointOffset = store.getWriteOffset();
+        checkpoint();
+        LOGGER.info("replay push journal, {} messages in flight", live.size());
+        this.compactScheduler.scheduleWithFixedDelay(this, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return offsets;
+    }
+
+    private void replay(AppendResult location, ByteBuffer packet){
+        byte type = packet.get(1);
+        long msgId = packet.getLong(2);
+        int bodyPosition = MappedFileManager.PACKET_HEAD_SIZE;
+        switch (type){
+            case PUT:
+                Entry entry = new Entry(location, packet.getInt(bodyPosition), packet.getLong(bodyPosition + 4));
+                entry.repost = packet.getInt(bodyPosition + 12);
+                entry.timestamp = packet.getLong(bodyPosition + 16);
+                live.put(msgId, entry);
+                journaledUpTo(entry.partition, entry.offset);
+                break;
+            case REPOST:
+                Entry reposted = live.get(msgId);
+                if(reposted != null){
+                    reposted.repost = packet.getInt(bodyPosition);
+                    reposted.timestamp = packet.getLong(bodyPosition + 4);
+                }
+                break;
+            case ACK:
+                live.remove(msgId);
+                journaledUpTo(packet.getInt(bodyPosition), packet.getLong(bodyPosition + 4));
+                break;
+            case OFFSET:
+                journaledUpTo(packet.getInt(bodyPosition), packet.getLong(bodyPosition + 4));
+                break;
+        }
+    }
+
+    private void journaledUpTo(int partition, long offset){
+        Long current = journaled.get(partition);
+        if(current == null || offset > current){
+            journaled.put(partition, offset);
+        }
+    }
+
+    /**
+     * append the PUT without waiting for the flush, the caller waits once for the last PUT of its batch with
+     * {@link #awaitFlush(AppendResult)}. The partitions of a caller are its own, so their offsets are journaled in order.
+     * @return the location of the entry, a message whose PUT is not ok must not be pushed
+     */
+    public AppendResult put(long msgId, int partition, long offset, Packet packet){
+        ByteBuffer payload = packet.getBody().duplicate();
+        payload.clear();
+        ByteBuffer body = ByteBuffer.allocate(PUT_HEAD_SIZE + payload.remaining());
+        body.putInt(partition);
+        body.putLong(offset);
+        body.putInt(1);
+        body.putLong(SystemClock.millisClock().now());
+        body.put(payload);
+        body.flip();
+        AppendResult result = append(PUT, msgId, body, false);
+        if(result.isOk()){
+            live.put(msgId, new Entry(result, partition, offset));
+            journaledUpTo(partition, offset);
+        }
+        return result;
+    }
+
+    /**
+     * wait for the flush of every entry appended up to this one.
+     * @return false if they could not be flushed in time
+     */
+    public boolean awaitFlush(AppendResult last){
+        return store.awaitFlush(last);
+    }
+
+    public void repost(long msgId, int repost, long timestamp){
+        Entry entry = live.get(msgId);
+        if(entry != null){
+            ByteBuffer body = ByteBuffer.allocate(4 + 8);
+            body.putInt(repost);
+            body.putLong(timestamp);
+            body.flip();
+            synchronized (entry){
+                entry.repost = repost;
+                entry.timestamp = timestamp;
+                if(!entry.acked){
+                    append(REPOST, msgId, body);
+                }
+            }
+        }
+    }
+
+    /**
+     * the ack does not wait for the flush, an ack lost in a crash only repushes the message once more.
+     * It is written under the entry lock so compaction never copies the PUT of an acked entry after its ACK.
+     */
+    public void ack(long msgId){
+        Entry entry = live.remove(msgId);
+        if(entry != null){
+            synchronized (entry){
+                entry.acked = true;
+                ByteBuffer body = ByteBuffer.allocate(4 + 8);
+                body.putInt(entry.partition);
+                body.putLong(entry.offset);
+                body.flip();
+                append(ACK, msgId, body, false);
+            }
+        }
+    }
+
+    private AppendResult append(byte type, long msgId, ByteBuffer body){
+        return append(type, msgId, body, true);
+    }
+
+    private AppendResult append(byte type, long msgId, ByteBuffer body, boolean flush){
+        Packet packet = new Packet();
+        packet.setCmd(type);
+        packet.setOpaque(msgId);
+        packet.setBody(body);
+        AppendResult result = flush ? store.write(packet) : store.append(packet);
+        if(!result.isOk()){
+            LOGGER.warn("write push journal fail, msgId : {}, result : {}", msgId, result);
+        }
+        return result;
+    }
+
+    /**
+     * journal the OFFSET of every partition at the head, so the ones before are no longer needed.
+     */
+    private void checkpoint(){
+        long offset = store.getWriteOffset();
+        for(Map.Entry<Integer, Long> next : journaled.entrySet()){
+            ByteBuffer body = ByteBuffer.allocate(4 + 8);
+            body.putInt(next.getKey());
+            body.putLong(next.getValue());
+            body.flip();
+            if(!append(OFFSET, 0, body, false).isOk()){
+                return;
+            }
+        }
+        this.checkpointOffset = offset;
+    }
+
+    /**
+     * read the push packet back from a PUT entry.
+     */
+    private Packet read(Entry entry){
+        ByteBuffer record = store.select(entry.location.getWroteOffset() + MappedFileManager.RECORD_HEAD_SIZE,
+                entry.location.getSize() - MappedFileManager.RECORD_HEAD_SIZE);
+        if(record == null){
+            return null;
+        }
+        ByteBuffer payload = record.duplicate();
+        payload.position(MappedFileManager.PACKET_HEAD_SIZE + PUT_HEAD_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(payload.remaining());
+        body.put(payload);
+        body.flip();
+        Packet packet = new Packet();
+        packet.setCmd(Command.PUSH.getCmd());
+        packet.setOpaque(record.getLong(2));
+        packet.setBody(body);
+        return packet;
+    }
+
+    /**
+     * move the live entries of the oldest segment to the head of the journal, and let the reclaimer delete it.
+     */
+    @Override
+    public void run() {
+        try {
+            List<MappedFile> mappedFiles = store.getMappedFiles();
+            if(mappedFiles.size() > 1){
+                checkpoint();
+                long oldestEnd = mappedFiles.get(0).getFileFromOffset() + mappedFiles.get(0).getFileSize();
+                for(Map.Entry<Long, Entry> next : new ArrayList<>(live.entrySet())){
+                    Entry entry = next.getValue();
+                    if(entry.location.getWroteOffset() < oldestEnd){
+                        Packet packet = read(entry);
+                        if(packet == null){
+                            continue;
+                        }
+                        synchronized (entry){
+                            if(entry.acked){
+                                continue;
+                            }
+                            ByteBuffer payload = packet.getBody().duplicate();
+                            ByteBuffer body = ByteBuffer.allocate(PUT_HEAD_SIZE + payload.remaining());
+                            body.putInt(entry.partition);
+                            body.putLong(entry.offset);
+                            body.putInt(entry.repost);
+                            body.putLong(entry.timestamp);
+                            body.put(payload);
+                            body.flip();
+                            AppendResult result = append(PUT, next.getKey(), body);
+                            if(result.isOk()){
+                                entry.location = result;
+                            }
+                        }
+                    }
+                }
+            }
+            long ackedOffset = Math.min(checkpointOffset, store.getWriteOffset());
+            for(Entry entry : live.values()){
+                ackedOffset = Math.min(ackedOffset, entry.location.getWroteOffset());
+            }
+            store.setAckedOffset(ackedOffset);
+        } catch (Throwable ex){
+            LOGGER.error("compact push journal error", ex);
+        }
+    }
+
+    public void close(){
+        this.compactScheduler.shutdown();
+        this.store.close();
+    }
+
+    static class Entry {
+
+        private volatile AppendResult location;
+
+        private final int partition;
+
+        private final long offset;
+
+        private volatile int repost = 1;
+
+        private volatile long timestamp;
+
+        /**
+         * guarded by the entry lock.
+         */
+        private boolean acked;
+
+        Entry(AppendResult location, int partition, long offset){
+            this.location = location;
+            this.partition = partition;
+            this.offset = offset;
+            this.timestamp = SystemClock.millisClock().now();
+        }
+    }
+}
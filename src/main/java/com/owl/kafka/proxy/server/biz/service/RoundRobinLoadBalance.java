@@ -17,11 +17,7 @@ public class RoundRobinLoadBalance implements LoadBalance<Connection> {
         if(invokers.size() <= 0){
             return null;
         }
-        if(index.get() >= invokers.size()){
-            index.set(0);
-        }
-        Connection connection = invokers.get(index.get());
-        index.incrementAndGet();
-        return connection;
+        //one atomic step, masked so the overflow stays positive
+        return invokers.get((index.getAndIncrement() & Integer.MAX_VALUE) % invokers.size());
     }
 }
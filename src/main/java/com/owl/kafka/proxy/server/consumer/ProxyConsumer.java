@@ -15,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -35,6 +36,8 @@ public class ProxyConsumer<K, V> implements Runnable{
 
     private MessageListenerService messageListenerService;
 
+    private final Map<TopicPartition, Long> seekOffsets = new ConcurrentHashMap<>();
+
     public ProxyConsumer(ConsumerConfig configs) {
         this.configs = configs;
 
@@ -56,6 +59,13 @@ public class ProxyConsumer<K, V> implements Runnable{
         this.messageListenerService = messageListenerService;
     }
 
+    /**
+     * once the partitions are assigned, skip the records before the offsets, unless the consumer is already past them.
+     */
+    public void seekOnAssigned(Map<TopicPartition, Long> offsets){
+        this.seekOffsets.putAll(offsets);
+    }
+
     public void start() {
 
         Preconditions.checkArgument(!configs.isAutoCommit(), "autCommit must be false");
@@ -63,7 +73,25 @@ public class ProxyConsumer<K, V> implements Runnable{
         Preconditions.checkArgument(messageListenerService != null, "MessageListenerService is null");
 
         if (start.compareAndSet(false, true)) {
-            consumer.subscribe(Arrays.asList(configs.getTopic()), (ConsumerRebalanceListener) messageListenerService);
+            final ConsumerRebalanceListener listener = (ConsumerRebalanceListener) messageListenerService;
+            consumer.subscribe(Arrays.asList(configs.getTopic()), new ConsumerRebalanceListener() {
+                @Override
+                public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                    listener.onPartitionsRevoked(partitions);
+                }
+
+                @Override
+                public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                    listener.onPartitionsAssigned(partitions);
+                    for(TopicPartition partition : partitions){
+                        Long offset = seekOffsets.remove(partition);
+                        if(offset != null && offset > consumer.position(partition)){
+                            LOG.info("seek {} to journaled offset {}", partition, offset);
+                            consumer.seek(partition, offset);
+                        }
+                    }
+                }
+            });
             //
             worker.setDaemon(true);
             worker.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
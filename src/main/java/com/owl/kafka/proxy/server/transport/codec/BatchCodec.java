@@ -0,0 +1,83 @@
+package com.owl.kafka.proxy.server.transport.codec;
+
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.client.proxy.transport.protocol.Command;
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import io.netty.util.AttributeKey;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Batched PUSH frames, for clients that send packets with version {@link #BATCH_VERSION} or later.
+ * A batched frame is a PUSH packet of that version whose body is count(4) + (recordLen(4) + record body) * count,
+ * every record keeps its own binary header and msgId. The records may be acked one by one as before, or together by
+ * an ACK whose body is magic(1) + count(4) + msgId(8) * count. A record ack body starts with the length of its header
+ * so its first byte is 0, the magic tells them apart.
+ * @Author: Tboy
+ */
+public class BatchCodec {
+
+    public static final byte BATCH_VERSION = 3;
+
+    public static final byte ACK_MAGIC = (byte) 0xB2;
+
+    private static final AttributeKey<Boolean> BATCH_PUSH = AttributeKey.valueOf("batch.push");
+
+    /**
+     * remember that the client of the connection reads batched frames, called for every received packet.
+     */
+    public static void negotiate(Connection connection, Packet packet){
+        if(packet.getVersion() >= BATCH_VERSION && !supportsBatch(connection)){
+            connection.getChannel().attr(BATCH_PUSH).set(Boolean.TRUE);
+        }
+    }
+
+    public static boolean supportsBatch(Connection connection){
+        return Boolean.TRUE.equals(connection.getChannel().attr(BATCH_PUSH).get());
+    }
+
+    /**
+     * pack the record bodies of the push packets into one frame.
+     */
+    public static Packet encode(long opaque, List<Packet> packets){
+        int capacity = 4;
+        for(Packet packet : packets){
+            capacity += 4 + packet.getBody().remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.putInt(packets.size());
+        for(Packet packet : packets){
+            buffer.putInt(packet.getBody().remaining());
+            buffer.put(packet.getBody().duplicate());
+        }
+        buffer.flip();
+        Packet frame = new Packet();
+        frame.setVersion(BATCH_VERSION);
+        frame.setCmd(Command.PUSH.getCmd());
+        frame.setOpaque(opaque);
+        frame.setBody(buffer);
+        return frame;
+    }
+
+    public static boolean isBatchAck(ByteBuffer body){
+        return body.remaining() >= 5 && body.get(body.position()) == ACK_MAGIC;
+    }
+
+    /**
+     * @return the acked msgIds, null if the count does not match the body
+     */
+    public static long[] decodeAck(ByteBuffer body){
+        ByteBuffer duplicate = body.duplicate();
+        duplicate.get();
+        int count = duplicate.getInt();
+        if(count < 0 || (long) count * 8 > duplicate.remaining()){
+            return null;
+        }
+        long[] msgIds = new long[count];
+        for(int i = 0; i < msgIds.length; i++){
+            msgIds[i] = duplicate.getLong();
+        }
+        return msgIds;
+    }
+}
@@ -0,0 +1,181 @@
+package com.owl.kafka.proxy.server.transport.codec;
+
+import com.owl.kafka.client.proxy.transport.Connection;
+import com.owl.kafka.client.proxy.transport.message.Header;
+import com.owl.kafka.client.proxy.transport.message.Message;
+import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.client.proxy.util.MessageCodec;
+import com.owl.kafka.client.serializer.SerializerImpl;
+import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import io.netty.util.AttributeKey;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed layout binary encoding of the {@link Header} of a record body : headerLen(4) + header + keyLen(4) + key +
+ * valueLen(4) + value, where the header is
+ * magic(1) + topicId(2) [+ topicLen(2) + topic] + partition(4) + offset(8) + msgId(8) + sign(1) + status(1) + repost(1).
+ * A connection serves a single topic, so topicId {@link #CONNECTION_TOPIC} stands for it and any other topic is
+ * written inline after {@link #INLINE_TOPIC}.
+ * Clients that send packets with version {@link #BINARY_VERSION} or later read both encodings, a json header always
+ * starts with '{' so the magic tells them apart. Older clients only ever get json headers.
+ * @Author: Tboy
+ */
+public class HeaderCodec {
+
+    public static final byte BINARY_VERSION = 2;
+
+    public static final byte MAGIC = (byte) 0xB1;
+
+    public static final short CONNECTION_TOPIC = 0;
+
+    public static final short INLINE_TOPIC = -1;
+
+    /**
+     * size of a binary header of the connection topic.
+     */
+    public static final int SIZE = 1 + 2 + 4 + 8 + 8 + 1 + 1 + 1;
+
+    private static final AttributeKey<Boolean> BINARY_HEADER = AttributeKey.valueOf("binary.header");
+
+    private static final String TOPIC = ServerConfigs.I.getServerTopic();
+
+    /**
+     * remember that the client of the connection understands binary headers, called for every received packet.
+     */
+    public static void negotiate(Connection connection, Packet packet){
+        if(packet.getVersion() >= BINARY_VERSION && !supportsBinary(connection)){
+            connection.getChannel().attr(BINARY_HEADER).set(Boolean.TRUE);
+        }
+    }
+
+    public static boolean supportsBinary(Connection connection){
+        return Boolean.TRUE.equals(connection.getChannel().attr(BINARY_HEADER).get());
+    }
+
+    public static ByteBuffer encode(String topic, int partition, long offset, long msgId, byte sign, byte status, byte repost,
+                                    byte[] key, byte[] value){
+        boolean inline = !TOPIC.equals(topic);
+        byte[] topicInBytes = inline ? topic.getBytes(StandardCharsets.UTF_8) : null;
+        int headerSize = inline ? SIZE + 2 + topicInBytes.length : SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + headerSize + 4 + key.length + 4 + value.length);
+        buffer.putInt(headerSize);
+        buffer.put(MAGIC);
+        if(inline){
+            buffer.putShort(INLINE_TOPIC);
+            buffer.putShort((short) topicInBytes.length);
+            buffer.put(topicInBytes);
+        } else{
+            buffer.putShort(CONNECTION_TOPIC);
+        }
+        buffer.putInt(partition);
+        buffer.putLong(offset);
+        buffer.putLong(msgId);
+        buffer.put(sign);
+        buffer.put(status);
+        buffer.put(repost);
+        //
+        buffer.putInt(key.length);
+        buffer.put(key);
+        //
+        buffer.putInt(value.length);
+        buffer.put(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static boolean isBinary(ByteBuffer body){
+        return body.remaining() > 4 && body.get(body.position() + 4) == MAGIC;
+    }
+
+    /**
+     * the msgId of a record body without decoding the rest of it.
+     */
+    public static long decodeMsgId(ByteBuffer body){
+        if(!isBinary(body)){
+            return decodeHeader(body).getMsgId();
+        }
+        int position = body.position() + 4 + 1;
+        if(body.getShort(position) == INLINE_TOPIC){
+            position += 2 + body.getShort(position + 2);
+        }
+        return body.getLong(position + 2 + 4 + 8);
+    }
+
+    public static Header decodeHeader(ByteBuffer body){
+        int position = body.position();
+        int headerSize = body.getInt(position);
+        position += 4;
+        if(body.get(position) != MAGIC){
+            byte[] headerInBytes = new byte[headerSize];
+            ByteBuffer duplicate = body.duplicate();
+            duplicate.position(position);
+            duplicate.get(headerInBytes);
+            return SerializerImpl.getFastJsonSerializer().deserialize(headerInBytes, Header.class);
+        }
+        position += 1;
+        String topic = TOPIC;
+        if(body.getShort(position) == INLINE_TOPIC){
+            byte[] topicInBytes = new byte[body.getShort(position + 2)];
+            ByteBuffer duplicate = body.duplicate();
+            duplicate.position(position + 4);
+            duplicate.get(topicInBytes);
+            topic = new String(topicInBytes, StandardCharsets.UTF_8);
+            position += 2 + topicInBytes.length;
+        }
+        position += 2;
+        int partition = body.getInt(position);
+        long offset = body.getLong(position + 4);
+        long msgId = body.getLong(position + 12);
+        Header header = new Header(topic, partition, offset, msgId, body.get(position + 21));
+        header.setSign(body.get(position + 20));
+        header.setRepost(body.get(position + 22));
+        return header;
+    }
+
+    /**
+     * decode a header alone, as kept by the message holder.
+     */
+    public static Header decodeHeader(byte[] header){
+        ByteBuffer body = ByteBuffer.allocate(4 + header.length);
+        body.putInt(header.length);
+        body.put(header);
+        body.flip();
+        return decodeHeader(body);
+    }
+
+    /**
+     * bump the repost count of a binary record in place.
+     */
+    public static void setRepost(ByteBuffer body, byte repost){
+        int position = body.position() + 4;
+        body.put(position + body.getInt(body.position()) - 1, repost);
+    }
+
+    /**
+     * the same record body with a json header, for clients that do not read binary headers.
+     */
+    public static ByteBuffer toJson(ByteBuffer body){
+        if(!isBinary(body)){
+            return body;
+        }
+        Header header = decodeHeader(body);
+        byte[] headerInBytes = SerializerImpl.getFastJsonSerializer().serialize(header);
+        ByteBuffer rest = body.duplicate();
+        rest.position(body.position() + 4 + body.getInt(body.position()));
+        ByteBuffer buffer = ByteBuffer.allocate(4 + headerInBytes.length + rest.remaining());
+        buffer.putInt(headerInBytes.length);
+        buffer.put(headerInBytes);
+        buffer.put(rest);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * decode a record body of either encoding, binary ones go through json so this is for the cold paths only.
+     */
+    public static Message decode(ByteBuffer body){
+        return MessageCodec.decode(toJson(body));
+    }
+}
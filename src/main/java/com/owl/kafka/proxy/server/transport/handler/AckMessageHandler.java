@@ -5,13 +5,15 @@ import com.owl.kafka.client.metric.MonitorImpl;
 import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.handler.CommonMessageHandler;
 import com.owl.kafka.client.proxy.transport.message.Header;
-import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.proxy.util.MessageCodec;
 import com.owl.kafka.client.util.NamedThreadFactory;
+import com.owl.kafka.proxy.server.biz.bo.FastResendMessage;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
 import com.owl.kafka.proxy.server.consumer.ProxyConsumer;
 import com.owl.kafka.proxy.server.biz.service.MessageHolder;
+import com.owl.kafka.proxy.server.transport.codec.BatchCodec;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
@@ -48,29 +50,56 @@ public class AckMessageHandler extends CommonMessageHandler {
 
     @Override
     public void handle(Connection connection, Packet packet) throws Exception {
-        Message message = MessageCodec.decode(packet.getBody());
-        Header.Sign sign = Header.Sign.of(message.getHeader().getSign());
+        if(BatchCodec.isBatchAck(packet.getBody())){
+            handleBatch(packet);
+            return;
+        }
+        Header header = HeaderCodec.decodeHeader(packet.getBody());
+        Header.Sign sign = Header.Sign.of(header.getSign());
         if(sign == null){
-            LOGGER.error("sign is empty, opaque : {}, message : {}", packet.getOpaque(),message);
+            LOGGER.error("sign is empty, opaque : {}, header : {}", packet.getOpaque(), header);
             return;
         }
         switch (sign){
             case PUSH:
-                LOGGER.debug("received push ack msg : {}", message);
-                acknowledge(message.getHeader());
-                boolean result = MessageHolder.fastRemove(message);
+                LOGGER.debug("received push ack msg : {}", header);
+                acknowledge(header);
+                PushWindows.I.ack(header.getMsgId());
+                boolean result = MessageHolder.fastRemove(header.getMsgId());
                 if(!result){
                     LOGGER.warn("MessageHolder not found ack opaque : {}, just ignore", packet.getOpaque());
                 }
                 break;
             case PULL:
-                LOGGER.debug("received pull ack msg : {}", message);
-                acknowledge(message.getHeader());
+                LOGGER.debug("received pull ack msg : {}", header);
+                acknowledge(header);
                 break;
 
         }
     }
 
+    /**
+     * a batch ack only carries msgIds, the headers to commit are the ones kept by the message holder.
+     */
+    private void handleBatch(Packet packet){
+        long[] msgIds = BatchCodec.decodeAck(packet.getBody());
+        if(msgIds == null){
+            LOGGER.error("malformed push batch ack, opaque : {}, body length : {}", packet.getOpaque(), packet.getBody().remaining());
+            return;
+        }
+        LOGGER.debug("received push batch ack of {} msgs", msgIds.length);
+        for(long msgId : msgIds){
+            FastResendMessage message = MessageHolder.get(msgId);
+            if(message == null){
+                LOGGER.warn("MessageHolder not found ack msgId : {}, just ignore", msgId);
+                continue;
+            }
+            acknowledge(HeaderCodec.decodeHeader(message.getHeader()));
+            PushWindows.I.ack(msgId);
+            MessageHolder.fastRemove(msgId);
+        }
+    }
+
     protected void acknowledge(Header header){
         if (messageCount.incrementAndGet() % batchSize == 0) {
             commitScheduler.execute(new CommitOffsetTask());
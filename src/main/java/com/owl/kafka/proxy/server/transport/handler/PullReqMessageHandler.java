@@ -2,15 +2,17 @@ package com.owl.kafka.proxy.server.transport.handler;
 
 import com.owl.kafka.client.proxy.transport.alloc.ByteBufferPool;
 import com.owl.kafka.client.proxy.transport.Connection;
-import com.owl.kafka.client.proxy.transport.exceptions.ChannelInactiveException;
 import com.owl.kafka.client.proxy.transport.handler.CommonMessageHandler;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
 import com.owl.kafka.client.util.NetUtils;
 import com.owl.kafka.proxy.server.biz.bo.PullRequest;
+import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
 import com.owl.kafka.proxy.server.biz.pull.PullCenter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+
 /**
  * @Author: Tboy
  */
@@ -20,22 +22,51 @@ public class PullReqMessageHandler extends CommonMessageHandler {
 
     private final ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
 
+    private final long suspendTimeoutMs = ServerConfigs.I.getServerPullSuspendTimeoutMs();
+
+    private final long maxSuspendTimeoutMs = ServerConfigs.I.getServerPullSuspendMaxTimeoutMs();
+
+    private final int messageCount = ServerConfigs.I.getServerPullMessageCount();
+
+    private final long messageSize = ServerConfigs.I.getServerPullMessageSize();
+
+    private final int maxMessageCount = ServerConfigs.I.getServerPullMaxMessageCount();
+
+    private final long maxMessageSize = ServerConfigs.I.getServerPullMaxMessageSize();
+
     @Override
     public void handle(Connection connection, Packet packet) throws Exception {
         if(LOGGER.isDebugEnabled()){
             LOGGER.debug("received pull request : {}, from : {}", packet, NetUtils.getRemoteAddress(connection.getChannel()));
         }
-        final boolean isSuspend = true;
-        PullRequest pullRequest = new PullRequest(connection, packet, 15 * 1000);
-        Packet result = PullCenter.I.pull(pullRequest, isSuspend);
-        //
-        if(!result.isBodyEmtpy()){
-            try {
-                connection.send(result);
-            } catch (ChannelInactiveException ex){
-                PullCenter.I.reputMessage(result);
+        PullCenter.I.submit(toRequest(connection, packet));
+    }
+
+    /**
+     * like a kafka fetch, a client may put its limits in the body : max wait in ms (long), then optionally
+     * min bytes, max bytes and max records (int each). Missing fields fall back to the server defaults, all are capped
+     * by the server max. The body is then emptied since the response is built on it.
+     */
+    private PullRequest toRequest(Connection connection, Packet packet){
+        long maxWait = suspendTimeoutMs;
+        int minBytes = 1;
+        long maxBytes = messageSize;
+        int maxRecords = messageCount;
+        if(!packet.isBodyEmtpy() && packet.getBody().remaining() >= 8){
+            ByteBuffer body = packet.getBody().duplicate();
+            maxWait = body.getLong();
+            if(body.remaining() >= 12){
+                minBytes = body.getInt();
+                maxBytes = body.getInt();
+                maxRecords = body.getInt();
             }
+            packet.setBody(ByteBuffer.allocate(0));
         }
+        PullRequest request = new PullRequest(connection, packet, Math.max(0, Math.min(maxWait, maxSuspendTimeoutMs)));
+        request.setMaxBytes(maxBytes <= 0 ? messageSize : Math.min(maxBytes, maxMessageSize));
+        request.setMaxRecords(maxRecords <= 0 ? messageCount : Math.min(maxRecords, maxMessageCount));
+        request.setMinBytes((int) Math.max(1, Math.min(minBytes, request.getMaxBytes())));
+        return request;
     }
 
 }
@@ -10,6 +10,7 @@ import com.owl.kafka.client.util.NetUtils;
 import com.owl.kafka.proxy.server.biz.bo.ServerConfigs;
 import com.owl.kafka.proxy.server.biz.pull.PullCenter;
 import com.owl.kafka.proxy.server.biz.service.InstanceHolder;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +27,10 @@ public class SendBackMessageHandler extends CommonMessageHandler {
 
     @Override
     public void handle(Connection connection, Packet packet) throws Exception {
+        if(HeaderCodec.isBinary(packet.getBody())){
+            handleBinary(connection, packet);
+            return;
+        }
         Message message = MessageCodec.decode(packet.getBody());
         Header header = message.getHeader();
         if(LOGGER.isDebugEnabled()){
@@ -41,4 +46,20 @@ public class SendBackMessageHandler extends CommonMessageHandler {
         }
 
     }
+
+    /**
+     * the repost count of a binary header is bumped in place, the record is not decoded.
+     */
+    private void handleBinary(Connection connection, Packet packet) throws Exception {
+        Header header = HeaderCodec.decodeHeader(packet.getBody());
+        if(LOGGER.isDebugEnabled()){
+            LOGGER.debug("received sendback message : {}, from : {}", header, NetUtils.getRemoteAddress(connection.getChannel()));
+        }
+        if(header.getRepost() >= repostCount){
+            InstanceHolder.I.getDLQService().write(header.getMsgId(), packet);
+        } else{
+            HeaderCodec.setRepost(packet.getBody(), (byte)(header.getRepost() + 1));
+            PullCenter.I.reputMessage(packet);
+        }
+    }
 }
@@ -4,7 +4,10 @@ import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.NettyConnection;
 import com.owl.kafka.client.proxy.transport.handler.MessageDispatcher;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
+import com.owl.kafka.proxy.server.biz.push.PushWindows;
 import com.owl.kafka.proxy.server.biz.service.InstanceHolder;
+import com.owl.kafka.proxy.server.transport.codec.BatchCodec;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -38,7 +41,21 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        dispatcher.dispatch(NettyConnection.attachChannel(ctx.channel()), (Packet)msg);
+        Connection connection = NettyConnection.attachChannel(ctx.channel());
+        HeaderCodec.negotiate(connection, (Packet)msg);
+        BatchCodec.negotiate(connection, (Packet)msg);
+        dispatcher.dispatch(connection, (Packet)msg);
+    }
+
+    /**
+     * a channel drained its outbound buffer, the pusher may use it again.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if(ctx.channel().isWritable()){
+            PushWindows.I.signal();
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
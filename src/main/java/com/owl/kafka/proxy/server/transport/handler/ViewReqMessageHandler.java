@@ -4,11 +4,11 @@ import com.owl.kafka.client.consumer.Record;
 import com.owl.kafka.client.proxy.transport.Connection;
 import com.owl.kafka.client.proxy.transport.handler.CommonMessageHandler;
 import com.owl.kafka.client.proxy.transport.message.Header;
-import com.owl.kafka.client.proxy.transport.message.Message;
 import com.owl.kafka.client.proxy.transport.protocol.Packet;
-import com.owl.kafka.client.proxy.util.MessageCodec;
 import com.owl.kafka.client.proxy.util.Packets;
+import com.owl.kafka.proxy.server.biz.pull.PullCenter;
 import com.owl.kafka.proxy.server.biz.service.InstanceHolder;
+import com.owl.kafka.proxy.server.transport.codec.HeaderCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,9 +22,12 @@ public class ViewReqMessageHandler extends CommonMessageHandler {
     @Override
     public void handle(Connection connection, Packet packet) throws Exception {
         LOGGER.debug("received view message : {}", packet);
-        Message message = MessageCodec.decode(packet.getBody());
-        Header header = message.getHeader();
-        Record<byte[], byte[]> record = InstanceHolder.I.getDLQService().view(header.getMsgId());
+        Header header = HeaderCodec.decodeHeader(packet.getBody());
+        //still staged in the pull store, or sent to the dead letter queue
+        Record<byte[], byte[]> record = PullCenter.I.view(header.getMsgId());
+        if(record == null){
+            record = InstanceHolder.I.getDLQService().view(header.getMsgId());
+        }
         if(record != null){
             connection.send(Packets.viewResp(packet.getOpaque(), header.getMsgId(), record));
         } else{